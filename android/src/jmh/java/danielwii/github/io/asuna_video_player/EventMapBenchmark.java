@@ -0,0 +1,73 @@
+package danielwii.github.io.asuna_video_player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the events both engines send, bufferingUpdate as a map and packed, and initialized.
+ * Each bufferingUpdate is flushed so it's built again instead of coalesced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventMapBenchmark {
+
+    private QueuingEventSink mapSink;
+    private QueuingEventSink compactSink;
+    private FakeEventSink    delegate;
+    private int              bufferedPercentage;
+
+    @Setup
+    public void setUp() {
+        delegate = new FakeEventSink();
+        mapSink = newSink(false);
+        compactSink = newSink(true);
+    }
+
+    private QueuingEventSink newSink(boolean compact) {
+        QueuingEventSink sink = new QueuingEventSink(null);
+        sink.setFlushInterval(16);
+        sink.setCompact(compact);
+        sink.setDelegate(delegate);
+        return sink;
+    }
+
+    @Benchmark
+    public Object bufferingUpdate() {
+        AbstractAsunaVideoPlayer.sendBufferedPercentage(mapSink, nextPercentage());
+        mapSink.run();
+        return delegate.lastEvent;
+    }
+
+    @Benchmark
+    public Object compactBufferingUpdate() {
+        AbstractAsunaVideoPlayer.sendBufferedPercentage(compactSink, nextPercentage());
+        compactSink.run();
+        return delegate.lastEvent;
+    }
+
+    @Benchmark
+    public Map<String, Object> initialized() {
+        return AbstractAsunaVideoPlayer.initializedEvent(
+                120000, 1920, 1080, 90, BufferingProfile.DEFAULT);
+    }
+
+    private int nextPercentage() {
+        bufferedPercentage = (bufferedPercentage + 1) % 101;
+        return bufferedPercentage;
+    }
+}
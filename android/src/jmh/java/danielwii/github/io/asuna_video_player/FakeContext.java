@@ -0,0 +1,38 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import java.io.File;
+
+/**
+ * The plugin's context on the plain JVM, with files and cache in a temporary directory.
+ */
+final class FakeContext extends ContextWrapper {
+
+    private final File filesDir;
+    private final File cacheDir;
+
+    FakeContext(File directory) {
+        super(null);
+        this.filesDir = new File(directory, "files");
+        this.cacheDir = new File(directory, "cache");
+        filesDir.mkdirs();
+        cacheDir.mkdirs();
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public File getCacheDir() {
+        return cacheDir;
+    }
+}
@@ -0,0 +1,68 @@
+package danielwii.github.io.asuna_video_player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.BinaryMessenger;
+
+/**
+ * What a call costs the main thread before it's posted to the playback thread: decoding it and
+ * {@code onMethodCall}. On the plain JVM handlers don't run what is posted, the playback thread's
+ * share is measured by {@link PlayerLoadTest} and the plugin's call timings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MethodCallBenchmark {
+
+    private static final String CHANNEL = "asuna_video_player";
+
+    @Param({"play", "seekTo", "setVisibility"})
+    public String method;
+
+    private FakeBinaryMessenger         messenger;
+    private ByteBuffer                  message;
+    private BinaryMessenger.BinaryReply reply;
+
+    @Setup
+    public void setUp() throws IOException {
+        File directory = Files.createTempDirectory("asuna-jmh").toFile();
+        messenger = new FakeBinaryMessenger();
+        AsunaVideoPlayerPlugin.registerWith(
+                new FakeRegistrar(new FakeContext(directory), messenger, new FakeTextureRegistry()));
+        message = FakeBinaryMessenger.encode(FakeMethodCall.of(
+                method,
+                "textureId", 0L,
+                "location", 1000,
+                "visible", true));
+        reply = new BinaryMessenger.BinaryReply() {
+            @Override
+            public void reply(ByteBuffer reply) {
+            }
+        };
+    }
+
+    @Benchmark
+    public void dispatch() {
+        message.rewind();
+        messenger.dispatch(CHANNEL, message, reply);
+    }
+}
@@ -0,0 +1,92 @@
+package danielwii.github.io.asuna_video_player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes of {@link QueuingEventSink}, with reusable, packed and new events. Run with
+ * {@code -prof gc} (the jmh task does) for the allocations per flush.
+ * <p>
+ * On the plain JVM there is no looper, so the sink delivers on the calling thread like it does on
+ * the main thread, without the copies for another thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueuingEventSinkBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int eventsPerFlush;
+
+    private QueuingEventSink sink;
+    private FakeEventSink    delegate;
+
+    @Setup
+    public void setUp() {
+        sink = new QueuingEventSink(null);
+        // posts the flush instead of waiting for a frame, run() flushes right away.
+        sink.setFlushInterval(16);
+        delegate = new FakeEventSink();
+        sink.setDelegate(delegate);
+    }
+
+    /**
+     * Progress updates of a player, coalesced into one event per flush.
+     */
+    @Benchmark
+    public long reusableEvents() {
+        for (int i = 0; i < eventsPerFlush; i++) {
+            Map<String, Object> event = sink.obtain("progress");
+            event.put("position", (long) i);
+            event.put("bufferedPosition", (long) i);
+            sink.success(event);
+        }
+        sink.run();
+        return delegate.successes;
+    }
+
+    @Benchmark
+    public long packedEvents() {
+        for (int i = 0; i < eventsPerFlush; i++) {
+            QueuingEventSink.PackedEvent event = sink.obtainPacked(CompactEvents.PROGRESS, 5);
+            event.values[1] = i;
+            event.values[2] = i;
+            event.values[3] = 0;
+            event.values[4] = 0;
+            sink.success(event);
+        }
+        sink.run();
+        return delegate.successes;
+    }
+
+    /**
+     * Events that are each queued, like state changes.
+     */
+    @Benchmark
+    public long newEvents() {
+        for (int i = 0; i < eventsPerFlush; i++) {
+            Map<String, Object> event = new HashMap<>();
+            event.put("event", "playStateChanged");
+            event.put("isPlaying", (i & 1) == 0);
+            sink.success(event);
+        }
+        sink.run();
+        return delegate.successes;
+    }
+}
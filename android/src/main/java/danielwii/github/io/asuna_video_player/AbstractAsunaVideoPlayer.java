@@ -2,6 +2,12 @@ package danielwii.github.io.asuna_video_player;
 
 import android.net.Uri;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 abstract class AbstractAsunaVideoPlayer implements IAsunaVideoPlayer {
 
     boolean isFileOrAsset(Uri uri) {
@@ -12,4 +18,51 @@ abstract class AbstractAsunaVideoPlayer implements IAsunaVideoPlayer {
         return scheme.equals("file") || scheme.equals("asset");
     }
 
+    /**
+     * Counters of the current session, the engine selector learns from them on dispose.
+     */
+    abstract PlaybackMetrics metrics();
+
+    /**
+     * Sends the buffered range of an engine which only knows the buffered percentage.
+     */
+    static void sendBufferedPercentage(QueuingEventSink eventSink, int bufferedPercentage) {
+        if (eventSink.isCompact()) {
+            QueuingEventSink.PackedEvent event = eventSink.obtainPacked(CompactEvents.BUFFERING_UPDATE, 4);
+            event.values[1] = 1;
+            event.values[2] = 0;
+            event.values[3] = bufferedPercentage;
+            eventSink.success(event);
+            return;
+        }
+        // iOS supports a list of buffered ranges, so here is a list with a single range. A new one
+        // per update, the main thread may still be encoding the last one.
+        List<Object>        bufferedRange = Collections.unmodifiableList(Arrays.<Object>asList(0, bufferedPercentage));
+        Map<String, Object> event         = eventSink.obtain("bufferingUpdate");
+        event.put("values", Collections.singletonList(bufferedRange));
+        eventSink.success(event);
+    }
+
+    /**
+     * @param width  of the decoded frames, 0 if there is no video.
+     * @param height of the decoded frames, 0 if there is no video.
+     */
+    static Map<String, Object> initializedEvent(
+            long duration, int width, int height, int rotationDegrees, BufferingProfile bufferingProfile) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("event", "initialized");
+        event.put("duration", duration);
+        event.put("bufferingProfile", bufferingProfile.toMap());
+        if (width > 0 && height > 0) {
+            // Switch the width/height if video was taken in portrait mode
+            if (rotationDegrees == 90 || rotationDegrees == 270) {
+                int swap = width;
+                width = height;
+                height = swap;
+            }
+            event.put("width", width);
+            event.put("height", height);
+        }
+        return event;
+    }
 }
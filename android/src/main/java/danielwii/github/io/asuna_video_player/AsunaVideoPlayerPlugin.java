@@ -3,12 +3,29 @@ package danielwii.github.io.asuna_video_player;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.security.NetworkSecurityPolicy;
 import android.util.Log;
 import android.util.LongSparseArray;
 import android.view.Surface;
 
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+
+import org.json.JSONException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 
 import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
@@ -30,9 +47,13 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
     enum PlayerType {
         IJK_PLAYER("ijk"),
         EXO_PLAYER("exo"),
+        /**
+         * Resolved per source by the {@link EngineSelector}.
+         */
+        AUTO("auto"),
         ;
 
-        private String name;
+        final String name;
 
         PlayerType(String name) {
             this.name = name;
@@ -47,31 +68,83 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
         }
     }
 
+    /**
+     * Owns the texture and event channel of a player, which are registered and released on the
+     * main thread, while the player itself lives on the playback thread.
+     */
     private static class AsunaVideoPlayerManager {
-        private final IAsunaVideoPlayer                   videoPlayer;
+        private final AbstractAsunaVideoPlayer            videoPlayer;
+        private final PlayerType                          playerType;
+        private final String                              container;
+        private final EngineSelector                      engines;
         private       Surface                             surface;
-        private final TextureRegistry.SurfaceTextureEntry textureEntry;
+        private final VideoTexture                        texture;
+        private final TexturePool                         texturePool;
         private final EventChannel                        eventChannel;
+        private final Handler                             mainHandler;
         private       boolean                             isInitialized = false;
+        // saves the position of players created with "resume", null otherwise.
+        private final ResumeStore                         resumeStore;
+        private final String                              resumeKey;
+        private final Handler                             playbackHandler;
+        private final Runnable                            resumeTracker = new Runnable() {
+            @Override
+            public void run() {
+                savePosition();
+                playbackHandler.postDelayed(this, SAVE_POSITION_INTERVAL_MS);
+            }
+        };
 
         private AsunaVideoPlayerManager(
-                Context context,
+                AbstractAsunaVideoPlayer videoPlayer,
                 PlayerType playerType,
                 EventChannel eventChannel,
-                TextureRegistry.SurfaceTextureEntry textureEntry,
+                VideoTexture texture,
                 String dataSource,
-                Result result) {
+                PlayerResources resources,
+                String resumeKey,
+                Handler mainHandler) {
+            this.videoPlayer = videoPlayer;
             this.eventChannel = eventChannel;
-            this.textureEntry = textureEntry;
+            this.texture = texture;
+            // shared players recycle their textures themselves, once no player renders into them.
+            this.texturePool = videoPlayer instanceof SharedPlayback.Output ? null : resources.texturePool;
+            this.mainHandler = mainHandler;
+            this.playerType = playerType;
+            this.container = EngineSelector.containerOf(dataSource);
+            this.engines = resources.engines;
+            this.resumeKey = resumeKey;
+            this.resumeStore = resumeKey != null ? resources.resumeStore : null;
+            // created on the playback thread.
+            this.playbackHandler = new Handler(Looper.myLooper());
+
+            if (resumeStore != null) {
+                long positionMs = resumeStore.get(resumeKey);
+                if (positionMs != C.TIME_UNSET) {
+                    if (Tracing.isEnabled()) {
+                        Timber.tag(TAG).d("resume %s at %dms", resumeKey, positionMs);
+                    }
+                    videoPlayer.seekTo((int) positionMs, IAsunaVideoPlayer.SeekMode.EXACT);
+                }
+                playbackHandler.postDelayed(resumeTracker, SAVE_POSITION_INTERVAL_MS);
+            }
+        }
 
+        static AbstractAsunaVideoPlayer newPlayer(
+                PlayerType playerType,
+                QueuingEventSink eventSink,
+                VideoTexture texture,
+                String dataSource,
+                Map<String, String> headers,
+                BufferingProfile bufferingProfile,
+                PlayerResources resources) {
             switch (playerType) {
-//                case IJK_PLAYER:
-//                    this.videoPlayer = new IJKVideoPlayerAdapter(context);
-//                    break;
+                case IJK_PLAYER:
+                    return new IJKVideoPlayerAdapter(
+                            resources, eventSink, texture, dataSource, headers, bufferingProfile);
                 case EXO_PLAYER:
-                    this.videoPlayer = new EXOVideoPlayerAdapter(
-                            context, eventChannel, textureEntry, dataSource, result);
-                    break;
+                    return new EXOVideoPlayerAdapter(
+                            resources, eventSink, texture, dataSource, headers, bufferingProfile);
                 default:
                     throw new IllegalStateException("Unsupported player type: " + playerType);
             }
@@ -80,6 +153,67 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
         IAsunaVideoPlayer instance() {
             return videoPlayer;
         }
+
+        void dispose() {
+            long beganAtNs = Tracing.begin();
+            if (resumeStore != null) {
+                playbackHandler.removeCallbacks(resumeTracker);
+                savePosition();
+            }
+            PlaybackMetrics metrics = videoPlayer.metrics();
+            if (metrics != null) {
+                engines.record(container, playerType, metrics);
+            }
+            videoPlayer.dispose();
+            release(mainHandler, eventChannel, texture, texturePool);
+            Tracing.end(texture.id(), "dispose", beganAtNs);
+        }
+
+        /**
+         * Releases a player that failed to set up, its position and metrics are not recorded.
+         */
+        void abandon() {
+            playbackHandler.removeCallbacks(resumeTracker);
+            videoPlayer.dispose();
+            release(mainHandler, eventChannel, texture, texturePool);
+        }
+
+        VideoTexture texture() {
+            return texture;
+        }
+
+        private void savePosition() {
+            switch (videoPlayer.getState()) {
+                case ENDED:
+                    resumeStore.remove(resumeKey);
+                    break;
+                case READY:
+                case PLAYING:
+                case BUFFERING:
+                case PAUSED:
+                    resumeStore.put(resumeKey, videoPlayer.getPosition());
+                    break;
+                default:
+                    // not at a position of the video yet, or failed at one saved before.
+                    break;
+            }
+        }
+
+        static void release(
+                Handler mainHandler,
+                final EventChannel eventChannel,
+                final VideoTexture texture,
+                final TexturePool texturePool) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    eventChannel.setStreamHandler(null);
+                    if (texturePool != null) {
+                        texturePool.recycle(texture);
+                    }
+                }
+            });
+        }
     }
 
     private static final String PLUGIN_NAME = "asuna_video_player";
@@ -90,8 +224,34 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
 
     private static final int REQUEST_CODE_OPEN = 12345;
 
-    private final LongSparseArray<IAsunaVideoPlayer> mVideoPlayers;
-    private final Registrar                          mRegistrar;
+    // resume positions are at most this old, the store coalesces the writes.
+    private static final int SAVE_POSITION_INTERVAL_MS = 1000;
+
+    // per texture methods a "batch" may contain.
+    private static final Set<String> BATCH_METHODS = new HashSet<>(Arrays.asList(
+            "play", "pause", "seekTo", "setVolume", "setLooping", "setVisibility", "dispose"));
+
+    // players, pool, preloader and resource manager are only accessed from the playback thread.
+    private final LongSparseArray<AsunaVideoPlayerManager> mVideoPlayers;
+    private final Registrar                                mRegistrar;
+    private final HandlerThread                            mPlaybackThread;
+    private final Handler                                  mPlaybackHandler;
+    private final Handler                                  mMainHandler;
+    private final DefaultBandwidthMeter                    mBandwidthMeter;
+    private final ExoPlayerPool                            mPlayerPool;
+    private final PlayerResourceManager                    mResourceManager;
+    private final MediaPreloader                           mPreloader;
+    private final ThumbnailExtractor                       mThumbnails;
+    private final DownloadStore                            mDownloads;
+    private final CallTimings                              mCallTimings;
+    private final EngineSelector                           mEngineSelector;
+    private final TexturePool                              mTexturePool;
+    private final ManifestCache                            mManifestCache;
+    private final HttpStack                                mHttpStack;
+    private       MediaCache                               mMediaCache;
+    private       ResumeStore                              mResumeStore;
+    // players shown on several textures, by data source and config, see sharedPlaybackKey.
+    private final Map<String, SharedPlayback>              mSharedPlayers = new HashMap<>();
 
 
     private AsunaVideoPlayerPlugin(Registrar registrar) {
@@ -100,7 +260,26 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
         }
         Timber.tag(TAG).d("init with activity...%d/%d", Build.VERSION.SDK_INT, Build.VERSION_CODES.M);
         mRegistrar = registrar;
+        mHttpStack = HttpStack.get();
         mVideoPlayers = new LongSparseArray<>();
+        // building players and media sources takes a while, keep it off the main thread.
+        mPlaybackThread = new HandlerThread("asuna-playback");
+        mPlaybackThread.start();
+        Looper playbackLooper = mPlaybackThread.getLooper();
+        mPlaybackHandler = new Handler(playbackLooper);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        PriorityTaskManager priorityTaskManager = new PriorityTaskManager();
+        mBandwidthMeter = new DefaultBandwidthMeter();
+        mPlayerPool = new ExoPlayerPool(registrar.context(), playbackLooper, priorityTaskManager, mBandwidthMeter);
+        mPreloader = new MediaPreloader(priorityTaskManager, playbackLooper);
+        mResourceManager = new PlayerResourceManager(registrar.context(), playbackLooper);
+        mThumbnails = new ThumbnailExtractor(registrar.context());
+        // restores and resumes downloads queued before the process died.
+        mDownloads = DownloadStore.get(registrar.context(), mHttpStack);
+        mCallTimings = new CallTimings();
+        mEngineSelector = new EngineSelector(registrar.context());
+        mTexturePool = new TexturePool();
+        mManifestCache = new ManifestCache();
 //        if (mActivity.checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
 //            mActivity.requestPermissions(new String[] { Manifest.permission.RECORD_AUDIO }, PERMISSIONS_REQUEST_RECORD_AUDIO);
 //        }
@@ -113,58 +292,306 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
         final MethodChannel channel = new MethodChannel(registrar.messenger(), PLUGIN_NAME);
         channel.setMethodCallHandler(plugin);
 
+        final EventChannel downloadEvents = new EventChannel(registrar.messenger(), PLUGIN_NAME + "/downloadEvents");
+        downloadEvents.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink sink) {
+                plugin.mDownloads.eventSink().setDelegate(sink);
+            }
+
+            @Override
+            public void onCancel(Object arguments) { plugin.mDownloads.eventSink().setDelegate(null); }
+        });
+
         registrar.addViewDestroyListener(new PluginRegistry.ViewDestroyListener() {
             @Override
             public boolean onViewDestroy(FlutterNativeView flutterNativeView) {
-                plugin.onDestroy();
+                plugin.mPlaybackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        plugin.onDestroy();
+                        if (plugin.mResumeStore != null) {
+                            // the positions saved by onDestroy, the process may go next.
+                            plugin.mResumeStore.flush();
+                        }
+                        plugin.mPlayerPool.dispose();
+                        plugin.mResourceManager.dispose();
+                        plugin.mThumbnails.dispose();
+                        // after the textures recycled by onDestroy.
+                        plugin.mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                plugin.mTexturePool.clear();
+                            }
+                        });
+                    }
+                });
+                plugin.mPlaybackThread.quitSafely();
+                // downloads keep running, there is just nobody listening anymore.
+                downloadEvents.setStreamHandler(null);
+                plugin.mDownloads.eventSink().setDelegate(null);
                 return false; // We are not interested in assuming ownership of the NativeView.
             }
         });
     }
 
+    /**
+     * Registers the texture and event channel on the main thread, the player is built on the
+     * playback thread and replies once it is set up. A player that fails to set up is released
+     * with its texture before the error is replied.
+     */
+    private void create(final MethodCall call, final Result result, TextureRegistry textures) {
+        final BufferingProfile bufferingProfile;
+        try {
+            bufferingProfile = BufferingProfile.of(call.argument("bufferingProfile"));
+        } catch (IllegalArgumentException | ClassCastException e) {
+            result.error("Invalid bufferingProfile", e.getMessage(), null);
+            return;
+        }
+        final VideoTexture texture = mTexturePool.acquire(textures);
+        final EventChannel eventChannel =
+                new EventChannel(mRegistrar.messenger(), PLUGIN_NAME + "/videoEvents" + texture.id());
+        final QueuingEventSink eventSink = new QueuingEventSink(mPlaybackThread.getLooper());
+        if (call.argument("compactEvents") != null) {
+            // older or newer dart sides keep getting maps.
+            eventSink.setCompact(CompactEvents.isSupported(((Number) call.argument("compactEvents")).intValue()));
+        }
+        eventChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink sink) {
+                Timber.tag(TAG).d("eventChannel.onListen: %s", sink);
+                eventSink.setDelegate(sink);
+            }
+
+            @Override
+            public void onCancel(Object arguments) { eventSink.setDelegate(null); }
+        });
+
+        final long postedAtNs = System.nanoTime();
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long startedAtNs = System.nanoTime();
+                long beganAtNs   = Tracing.begin();
+                try {
+                    create(call, bufferingProfile, texture, eventChannel, eventSink);
+                    Map<String, Object> reply = new HashMap<>();
+                    reply.put("textureId", texture.id());
+                    result.success(reply);
+                } catch (RuntimeException e) {
+                    Timber.tag(TAG).e(e, "failed to create player");
+                    result.error("error", e.getMessage(), null);
+                }
+                Tracing.end(texture.id(), "create", beganAtNs);
+                mCallTimings.record(startedAtNs - postedAtNs, System.nanoTime() - startedAtNs);
+            }
+        });
+    }
+
     private void create(
             MethodCall call,
-            Result result,
-            TextureRegistry.SurfaceTextureEntry surfaceTexture) {
-        Timber.tag(TAG).d("create... type is %s", call.<String>argument("type"));
+            BufferingProfile bufferingProfile,
+            VideoTexture texture,
+            EventChannel eventChannel,
+            QueuingEventSink eventSink) {
+        if (Tracing.isEnabled()) {
+            Timber.tag(TAG).d("create... type is %s", call.<String>argument("type"));
+        }
 
-        EventChannel eventChannel =
-                new EventChannel(mRegistrar.messenger(), PLUGIN_NAME + "/videoEvents" + surfaceTexture.id());
+        String              dataSource;
+        Map<String, String> headers;
+        if (call.argument("asset") != null) {
+            dataSource = assetDataSource(call);
+            headers = null;
+        } else {
+            dataSource = Objects.requireNonNull(call.<String>argument("uri"));
+            headers = call.argument("headers");
+            // the player reads whatever was preloaded, no need to keep fetching in parallel.
+            mPreloader.cancel(dataSource);
+        }
+        PlayerType requestedType = PlayerType.of(call.<String>argument("type"));
+        PlayerType playerType    = requestedType;
+        if (playerType == PlayerType.AUTO) {
+            playerType = mEngineSelector.select(dataSource);
+        } else if (playerType == PlayerType.IJK_PLAYER && !IJKVideoPlayerAdapter.isAvailable()) {
+            // an UnsatisfiedLinkError would kill the playback thread.
+            Timber.tag(TAG).w("no ijk natives for this ABI, play %s with exo", dataSource);
+            playerType = PlayerType.EXO_PLAYER;
+        }
 
-        IAsunaVideoPlayer player;
+        String resumeKey = null;
+        if (Boolean.TRUE.equals(call.argument("resume"))) {
+            resumeKey = call.argument("contentId") != null ? call.<String>argument("contentId") : dataSource;
+        }
 
-        if (call.argument("asset") != null) {
-            String assetLookupKey;
-            if (call.argument("package") != null) {
-                assetLookupKey = mRegistrar.lookupKeyForAsset(
-                        call.<String>argument("asset"),
-                        call.<String>argument("package"));
+        PlayerResources          resources   = resources();
+        AbstractAsunaVideoPlayer videoPlayer = null;
+        AsunaVideoPlayerManager  manager     = null;
+        boolean                  joined      = false;
+        // texture the resource manager knows the joined shared player by.
+        long                     sharedWith  = 0;
+        try {
+            if (Boolean.TRUE.equals(call.argument("shared"))) {
+                // only the exo adapter can hand its decoder output to a fan out.
+                if (requestedType == PlayerType.IJK_PLAYER) {
+                    throw new IllegalArgumentException("Shared players are exo players, ijk can't be shared");
+                }
+                playerType = PlayerType.EXO_PLAYER;
+                String         sharedKey = sharedPlaybackKey(dataSource, headers, bufferingProfile, call);
+                SharedPlayback playback  = sharedPlayback(sharedKey);
+                if (playback == null) {
+                    EXOVideoPlayerAdapter player = new EXOVideoPlayerAdapter(
+                            resources, eventSink, texture, dataSource, headers, bufferingProfile);
+                    playback = new SharedPlayback(player, texture, eventSink, resources, mMainHandler);
+                    videoPlayer = playback.attach(texture, eventSink);
+                    mSharedPlayers.put(sharedKey, playback);
+                } else {
+                    // shows the player as it is, without resuming or changing what it plays.
+                    joined = true;
+                    resumeKey = null;
+                    sharedWith = playback.textureId();
+                    videoPlayer = playback.attach(texture, eventSink);
+                }
             } else {
-                assetLookupKey = mRegistrar.lookupKeyForAsset(call.<String>argument("asset"));
+                videoPlayer = AsunaVideoPlayerManager.newPlayer(
+                        playerType, eventSink, texture, dataSource, headers, bufferingProfile, resources);
             }
-            player = new AsunaVideoPlayerManager(
-                    mRegistrar.context(),
-                    PlayerType.of(call.<String>argument("type")),
+
+            manager = new AsunaVideoPlayerManager(
+                    videoPlayer,
+                    playerType,
                     eventChannel,
-                    surfaceTexture,
-                    "asset:///" + assetLookupKey,
-                    result
-            ).instance();
+                    texture,
+                    dataSource,
+                    resources,
+                    resumeKey,
+                    mMainHandler
+            );
+
+            IAsunaVideoPlayer player = manager.instance();
+            if (call.argument("progressInterval") != null) {
+                player.setProgressInterval(((Number) call.argument("progressInterval")).intValue());
+            }
+            if (call.argument("playlist") != null && !joined) {
+                for (String item : call.<List<String>>argument("playlist")) {
+                    player.addItem(item, -1);
+                }
+            }
+            if (call.argument("trackConstraints") != null && !joined) {
+                setTrackConstraints(player, call.<Map<String, Object>>argument("trackConstraints"));
+            }
+            if (call.argument("statsInterval") != null) {
+                player.setStatsInterval(((Number) call.argument("statsInterval")).intValue());
+            }
+
+            mVideoPlayers.put(texture.id(), manager);
+            if (joined) {
+                // one decoder, counted once towards max active players.
+                mResourceManager.share(texture.id(), sharedWith);
+            } else {
+                mResourceManager.add(texture.id(), player);
+            }
+        } catch (RuntimeException e) {
+            // nothing of the player stays alive, the caller replies the error.
+            mVideoPlayers.remove(texture.id());
+            mResourceManager.remove(texture.id());
+            if (manager != null) {
+                manager.abandon();
+            } else if (videoPlayer != null) {
+                videoPlayer.dispose();
+                // shared outputs recycle their textures themselves.
+                AsunaVideoPlayerManager.release(
+                        mMainHandler,
+                        eventChannel,
+                        texture,
+                        videoPlayer instanceof SharedPlayback.Output ? null : mTexturePool);
+            } else {
+                AsunaVideoPlayerManager.release(mMainHandler, eventChannel, texture, mTexturePool);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Shared players are joined by creates of the same source that configure the player the same
+     * way, a create with other headers, buffering profile, track constraints or playlist gets a
+     * player of its own instead of its config being dropped.
+     */
+    private static String sharedPlaybackKey(
+            String dataSource, Map<String, String> headers, BufferingProfile bufferingProfile, MethodCall call) {
+        Map<String, Object> trackConstraints = call.argument("trackConstraints");
+        // sorted, so equal maps give equal keys.
+        return dataSource
+                + '|' + (headers != null ? new TreeMap<>(headers) : null)
+                + '|' + new TreeMap<>(bufferingProfile.toMap())
+                + '|' + (trackConstraints != null ? new TreeMap<>(trackConstraints) : null)
+                + '|' + call.argument("playlist");
+    }
+
+    /**
+     * The shared player of key which more textures can attach to, null if there is none.
+     */
+    private SharedPlayback sharedPlayback(String key) {
+        Iterator<SharedPlayback> iterator = mSharedPlayers.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isReleased()) {
+                iterator.remove();
+            }
+        }
+        SharedPlayback playback = mSharedPlayers.get(key);
+        // a failed player has to be created again, its outputs keep it until they are disposed.
+        return playback != null && playback.getState() != IAsunaVideoPlayer.State.ERROR ? playback : null;
+    }
+
+    private String assetDataSource(MethodCall call) {
+        String assetLookupKey;
+        if (call.argument("package") != null) {
+            assetLookupKey = mRegistrar.lookupKeyForAsset(
+                    call.<String>argument("asset"),
+                    call.<String>argument("package"));
         } else {
-            player = new AsunaVideoPlayerManager(
-                    mRegistrar.context(),
-                    PlayerType.EXO_PLAYER,
-                    eventChannel,
-                    surfaceTexture,
-                    call.<String>argument("uri"),
-                    result
-            ).instance();
+            assetLookupKey = mRegistrar.lookupKeyForAsset(call.<String>argument("asset"));
+        }
+        return "asset:///" + assetLookupKey;
+    }
+
+    private MediaCache mediaCache() {
+        if (mMediaCache == null) {
+            mMediaCache = MediaCache.get(mRegistrar.context(), mHttpStack, MediaCache.DEFAULT_MAX_BYTES);
         }
+        return mMediaCache;
+    }
+
+    private ResumeStore resumeStore() {
+        if (mResumeStore == null) {
+            // reads the saved positions, so not on the main thread.
+            mResumeStore = ResumeStore.get(mRegistrar.context());
+        }
+        return mResumeStore;
+    }
+
+    private static void setTrackConstraints(IAsunaVideoPlayer player, Map<String, Object> constraints) {
+        player.setTrackConstraints(
+                intValue(constraints, "maxWidth", Integer.MAX_VALUE),
+                intValue(constraints, "maxHeight", Integer.MAX_VALUE),
+                intValue(constraints, "maxBitrate", Integer.MAX_VALUE),
+                Boolean.TRUE.equals(constraints.get("preferLowestWhenHidden")));
+    }
 
-        mVideoPlayers.put(surfaceTexture.id(), player);
+    private static int intValue(Map<String, Object> values, String key, int fallback) {
+        Object value = values.get(key);
+        return value != null ? ((Number) value).intValue() : fallback;
+    }
+
+    private PlayerResources resources() {
+        return new PlayerResources(
+                mRegistrar.context(), mediaCache(), mPlayerPool, mDownloads, mEngineSelector, mTexturePool,
+                mManifestCache, resumeStore());
     }
 
     private void onDestroy() {
+        mPreloader.cancelAll();
+        mThumbnails.cancelAll();
         // The whole FlutterView is being destroyed. Here we release resources acquired for all instances
         // of VideoPlayer. Once https://github.com/flutter/flutter/issues/19358 is resolved this may
         // be replaced with just asserting that videoPlayers.isEmpty().
@@ -173,11 +600,14 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
             mVideoPlayers.valueAt(i).dispose();
         }
         mVideoPlayers.clear();
+        mSharedPlayers.clear();
+        mResourceManager.clear();
     }
 
     @Override
-    public void onMethodCall(MethodCall call, Result result) {
-        if (!call.method.equalsIgnoreCase("position")) {
+    public void onMethodCall(final MethodCall call, Result result) {
+        // formats the arguments of every call, so only while tracing.
+        if (Tracing.isEnabled() && !call.method.equalsIgnoreCase("position")) {
             Timber.tag(TAG).d("onMethodCall:%s, %s", call.method, call.arguments);
         }
         TextureRegistry textures = mRegistrar.textures();
@@ -186,32 +616,246 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
             return;
         }
 
+        final Result reply = new MainThreadResult(result);
+        if (call.method.equals("create")) {
+            create(call, reply, textures);
+            return;
+        }
+        // calls are handled in order, so a call never sees a player that is half created.
+        final long postedAtNs = System.nanoTime();
+        mPlaybackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long startedAtNs = System.nanoTime();
+                try {
+                    onPlaybackThreadMethodCall(call, reply);
+                } catch (RuntimeException e) {
+                    Timber.tag(TAG).e(e, "failed to handle %s", call.method);
+                    reply.error("error", e.getMessage(), null);
+                }
+                mCallTimings.record(startedAtNs - postedAtNs, System.nanoTime() - startedAtNs);
+            }
+        });
+    }
+
+    private void onPlaybackThreadMethodCall(MethodCall call, Result result) {
         switch (call.method) {
             case "init": {
                 onDestroy();
+                if (call.argument("maxCacheSize") != null) {
+                    long maxCacheSize = ((Number) call.argument("maxCacheSize")).longValue();
+                    mMediaCache = MediaCache.get(mRegistrar.context(), mHttpStack, maxCacheSize);
+                }
+                if (call.argument("maxPooledPlayers") != null) {
+                    mPlayerPool.setMaxSize(((Number) call.argument("maxPooledPlayers")).intValue());
+                }
+                if (call.argument("suspendHiddenAfterMs") != null) {
+                    mResourceManager.setSuspendDelay(((Number) call.argument("suspendHiddenAfterMs")).intValue());
+                }
+                if (call.argument("maxDownloadBytes") != null) {
+                    mDownloads.setMaxBytes(((Number) call.argument("maxDownloadBytes")).longValue());
+                }
+                if (call.argument("maxPooledTextures") != null) {
+                    mTexturePool.setMaxSize(((Number) call.argument("maxPooledTextures")).intValue());
+                }
+                if (call.argument("maxActivePlayers") != null) {
+                    mResourceManager.setMaxActivePlayers(((Number) call.argument("maxActivePlayers")).intValue());
+                }
+                result.success(null);
+                break;
+            }
+            case "getCacheStats": {
+                result.success(mediaCache().stats());
+                break;
+            }
+            case "setTracing": {
+                Tracing.setEnabled(Boolean.TRUE.equals(call.argument("enabled")));
+                if (Boolean.TRUE.equals(call.argument("clear"))) {
+                    Tracing.clear();
+                }
+                result.success(null);
+                break;
+            }
+            case "dumpTrace": {
+                Long textureId = call.argument("textureId") != null
+                        ? ((Number) call.argument("textureId")).longValue() : null;
+                try {
+                    result.success(Tracing.dump(textureId));
+                } catch (JSONException e) {
+                    result.error("error", e.getMessage(), null);
+                }
+                break;
+            }
+            case "getPluginStats": {
+                Map<String, Object> stats = new HashMap<>();
+                stats.put("cache", mediaCache().stats());
+                stats.put("pool", mPlayerPool.stats());
+                stats.put("resources", mResourceManager.stats());
+                stats.put("bitrateEstimate", mBandwidthMeter.getBitrateEstimate());
+                stats.put("thumbnails", mThumbnails.stats());
+                stats.put("downloads", mDownloads.stats());
+                stats.put("http", mHttpStack.stats());
+                stats.put("engines", mEngineSelector.stats());
+                stats.put("textures", mTexturePool.stats());
+                stats.put("manifests", mManifestCache.stats());
+                stats.put("resume", resumeStore().stats());
+                stats.put("calls", mCallTimings.toMap());
+                result.success(stats);
+                break;
+            }
+            case "preload": {
+                String uri        = Objects.requireNonNull(call.<String>argument("uri"));
+                long   bytes      = call.argument("bytes") != null ? ((Number) call.argument("bytes")).longValue() : 0;
+                long   durationMs = call.argument("durationMs") != null ? ((Number) call.argument("durationMs")).longValue() : 0;
+                result.success(mPreloader.preload(mediaCache(), uri, bytes, durationMs));
+                break;
+            }
+            case "getThumbnail": {
+                String dataSource = call.argument("asset") != null
+                        ? assetDataSource(call)
+                        : Objects.requireNonNull(call.<String>argument("uri"));
+                long timeMs   = ((Number) Objects.requireNonNull(call.argument("timeMs"))).longValue();
+                int  maxWidth = call.argument("maxWidth") != null ? ((Number) call.argument("maxWidth")).intValue() : 160;
+                mThumbnails.extract(
+                        mediaCache(), dataSource, call.<Map<String, String>>argument("headers"), timeMs, maxWidth, result);
+                break;
+            }
+            case "cancelThumbnails": {
+                if (call.argument("asset") != null) {
+                    mThumbnails.cancel(assetDataSource(call));
+                } else if (call.argument("uri") != null) {
+                    mThumbnails.cancel(call.<String>argument("uri"));
+                } else {
+                    mThumbnails.cancelAll();
+                }
+                result.success(null);
+                break;
+            }
+            case "configureHttp": {
+                Map<String, Object> http = call.arguments();
+                mHttpStack.configure(
+                        intValue(http, "connectTimeoutMs", HttpStack.DEFAULT_CONNECT_TIMEOUT_MS),
+                        intValue(http, "readTimeoutMs", HttpStack.DEFAULT_READ_TIMEOUT_MS),
+                        intValue(http, "retries", HttpStack.DEFAULT_RETRIES),
+                        http.get("userAgent") != null ? (String) http.get("userAgent") : HttpStack.DEFAULT_USER_AGENT);
+                result.success(null);
+                break;
+            }
+            case "download": {
+                mDownloads.download(
+                        Objects.requireNonNull(call.<String>argument("uri")),
+                        call.argument("maxBitrate") != null ? ((Number) call.argument("maxBitrate")).intValue() : Integer.MAX_VALUE,
+                        result);
+                break;
+            }
+            case "removeDownload": {
+                mDownloads.remove(Objects.requireNonNull(call.<String>argument("uri")), result);
+                break;
+            }
+            case "pauseDownloads": {
+                mDownloads.setPaused(true, result);
                 break;
             }
-            case "create": {
-                create(call, result, textures.createSurfaceTexture());
+            case "resumeDownloads": {
+                mDownloads.setPaused(false, result);
+                break;
+            }
+            case "getDownloads": {
+                mDownloads.list(result);
+                break;
+            }
+            case "batch": {
+                result.success(batch(Objects.requireNonNull(call.<List<Map<String, Object>>>argument("commands"))));
+                break;
+            }
+            case "pauseAll": {
+                int paused = 0;
+                for (int i = 0; i < mVideoPlayers.size(); i++) {
+                    IAsunaVideoPlayer player = mVideoPlayers.valueAt(i).instance();
+                    if (player.getState().accepts("pause")) {
+                        player.pause();
+                        paused++;
+                    }
+                }
+                result.success(paused);
+                break;
+            }
+            case "disposeAll": {
+                int disposed = mVideoPlayers.size();
+                for (int i = 0; i < disposed; i++) {
+                    mResourceManager.remove(mVideoPlayers.keyAt(i));
+                    mVideoPlayers.valueAt(i).dispose();
+                }
+                mVideoPlayers.clear();
+                result.success(disposed);
+                break;
+            }
+            case "cancelPreload": {
+                if (call.argument("uri") != null) {
+                    mPreloader.cancel(call.<String>argument("uri"));
+                } else {
+                    mPreloader.cancelAll();
+                }
+                result.success(null);
                 break;
             }
             default: {
-                long              textureId = ((Number) Objects.requireNonNull(call.argument("textureId"))).longValue();
-                IAsunaVideoPlayer player    = mVideoPlayers.get(textureId);
-                if (player == null) {
+                long                    textureId = ((Number) Objects.requireNonNull(call.argument("textureId"))).longValue();
+                AsunaVideoPlayerManager manager   = mVideoPlayers.get(textureId);
+                if (manager == null) {
                     result.error(
                             "Unknown textureId",
                             "No video player associated with texture id " + textureId,
                             null);
                     return;
                 }
-                onMethodCall(call, result, textureId, player);
+                onMethodCall(call, result, textureId, manager);
                 break;
             }
         }
     }
 
-    private void onMethodCall(MethodCall call, Result result, long textureId, IAsunaVideoPlayer player) {
+    /**
+     * Runs the commands in order, each a map of its "method", "textureId" and arguments. A
+     * failing command, malformed ones included, gets an error result and doesn't stop the ones
+     * after it.
+     */
+    private List<Object> batch(List<Map<String, Object>> commands) {
+        BatchResult result = new BatchResult(commands.size());
+        for (Map<String, Object> command : commands) {
+            int replied = result.results().size();
+            try {
+                String method = (String) command.get("method");
+                if (!BATCH_METHODS.contains(method)) {
+                    result.error("unsupported", method + " can't be batched", null);
+                    continue;
+                }
+                long                    textureId = ((Number) Objects.requireNonNull(command.get("textureId"))).longValue();
+                AsunaVideoPlayerManager manager   = mVideoPlayers.get(textureId);
+                if (manager == null) {
+                    result.error("Unknown textureId", "No video player associated with texture id " + textureId, null);
+                    continue;
+                }
+                onMethodCall(new MethodCall(method, command), result, textureId, manager);
+            } catch (RuntimeException e) {
+                Timber.tag(TAG).e(e, "failed to handle batched command %s", command);
+                // one result per command, even if it failed after replying.
+                if (result.results().size() == replied) {
+                    result.error("error", e.getMessage(), null);
+                }
+            }
+        }
+        return result.results();
+    }
+
+    private void onMethodCall(MethodCall call, Result result, long textureId, AsunaVideoPlayerManager manager) {
+        Tracing.instant(textureId, call.method);
+        IAsunaVideoPlayer player = manager.instance();
+        IAsunaVideoPlayer.State state = player.getState();
+        if (!state.accepts(call.method)) {
+            result.error("illegal_state", call.method + " is not allowed in state " + state.name, null);
+            return;
+        }
         switch (call.method) {
             case "setLooping":
                 player.setLooping(((boolean) call.argument("looping")));
@@ -222,6 +866,7 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
                 result.success(null);
                 break;
             case "play":
+                mResourceManager.activate(textureId);
                 player.play();
                 result.success(null);
                 break;
@@ -230,16 +875,75 @@ public class AsunaVideoPlayerPlugin implements MethodCallHandler {
                 result.success(null);
                 break;
             case "seekTo":
+                mResourceManager.activate(textureId);
                 int location = ((Number) Objects.requireNonNull(call.argument("location"))).intValue();
-                player.seekTo(location);
+                player.seekTo(location, IAsunaVideoPlayer.SeekMode.of(call.<String>argument("mode")));
                 result.success(null);
                 break;
             case "position":
                 result.success(player.getPosition());
                 player.sendBufferingUpdate();
                 break;
+            case "getStats":
+                Map<String, Object> stats = player.getStats();
+                stats.put("engine", manager.playerType.name);
+                stats.put("texture", manager.texture().stats());
+                result.success(stats);
+                break;
+            case "playlistAdd":
+                String item = Objects.requireNonNull(call.<String>argument("uri"));
+                mPreloader.cancel(item);
+                player.addItem(item, call.argument("index") != null ? ((Number) call.argument("index")).intValue() : -1);
+                result.success(null);
+                break;
+            case "playlistRemove":
+                player.removeItem(((Number) Objects.requireNonNull(call.argument("index"))).intValue());
+                result.success(null);
+                break;
+            case "playlistMove":
+                player.moveItem(
+                        ((Number) Objects.requireNonNull(call.argument("from"))).intValue(),
+                        ((Number) Objects.requireNonNull(call.argument("to"))).intValue());
+                result.success(null);
+                break;
+            case "next":
+                mResourceManager.activate(textureId);
+                player.next();
+                result.success(null);
+                break;
+            case "previous":
+                mResourceManager.activate(textureId);
+                player.previous();
+                result.success(null);
+                break;
+            case "setViewportSize":
+                player.setViewportSize(
+                        ((Number) Objects.requireNonNull(call.argument("width"))).intValue(),
+                        ((Number) Objects.requireNonNull(call.argument("height"))).intValue());
+                result.success(null);
+                break;
+            case "setTrackConstraints":
+                setTrackConstraints(player, call.<Map<String, Object>>arguments());
+                result.success(null);
+                break;
+            case "setVisibility":
+                boolean visible = (boolean) call.argument("visible");
+                player.setVisibility(visible);
+                mResourceManager.setVisible(textureId, visible);
+                result.success(null);
+                break;
+            case "setStatsInterval":
+                player.setStatsInterval(((Number) Objects.requireNonNull(call.argument("interval"))).intValue());
+                result.success(null);
+                break;
+            case "setProgressInterval":
+                int interval = ((Number) Objects.requireNonNull(call.argument("interval"))).intValue();
+                player.setProgressInterval(interval);
+                result.success(null);
+                break;
             case "dispose":
-                player.dispose();
+                mResourceManager.remove(textureId);
+                manager.dispose();
                 mVideoPlayers.remove(textureId);
                 result.success(null);
                 break;
@@ -0,0 +1,45 @@
+package danielwii.github.io.asuna_video_player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Collects the replies of the commands of one "batch" call, in command order. A failed command
+ * is a map with its "error" code and "message", other commands are their result.
+ * <p>
+ * Only used on the playback thread.
+ */
+final class BatchResult implements MethodChannel.Result {
+
+    private final List<Object> results;
+
+    BatchResult(int size) {
+        this.results = new ArrayList<>(size);
+    }
+
+    List<Object> results() {
+        return results;
+    }
+
+    @Override
+    public void success(Object result) {
+        results.add(result);
+    }
+
+    @Override
+    public void error(String errorCode, String errorMessage, Object errorDetails) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("error", errorCode);
+        error.put("message", errorMessage);
+        results.add(error);
+    }
+
+    @Override
+    public void notImplemented() {
+        error("notImplemented", null, null);
+    }
+}
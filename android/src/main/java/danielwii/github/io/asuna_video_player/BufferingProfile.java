@@ -0,0 +1,170 @@
+package danielwii.github.io.asuna_video_player;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buffer thresholds of a player's LoadControl, either a named preset or custom values.
+ * <p>
+ * The "bufferingProfile" argument of create is a preset name, or a map of the values below,
+ * optionally with the "name" of a preset to start from.
+ */
+final class BufferingProfile {
+
+    static final BufferingProfile DEFAULT = new BufferingProfile(
+            "default",
+            DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
+            DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
+            DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS,
+            DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS,
+            DefaultLoadControl.DEFAULT_TARGET_BUFFER_BYTES,
+            DefaultLoadControl.DEFAULT_PRIORITIZE_TIME_OVER_SIZE_THRESHOLDS);
+
+    /**
+     * Starts as soon as half a second is buffered and keeps a small buffer, for short clips.
+     */
+    static final BufferingProfile FAST_START = new BufferingProfile(
+            "fast-start", 2500, 15000, 500, 1500, DefaultLoadControl.DEFAULT_TARGET_BUFFER_BYTES, true);
+
+    /**
+     * Caps the buffer at 4MB, for feeds with several players alive together.
+     */
+    static final BufferingProfile LOW_MEMORY = new BufferingProfile(
+            "low-memory", 5000, 10000, 1000, 2000, 4 * 1024 * 1024, false);
+
+    /**
+     * Buffers up to two minutes ahead to ride out bad connections, for long videos.
+     */
+    static final BufferingProfile LONG_FORM = new BufferingProfile(
+            "long-form", 30000, 120000, 2500, 5000, DefaultLoadControl.DEFAULT_TARGET_BUFFER_BYTES, true);
+
+    private static final BufferingProfile[] PRESETS = {DEFAULT, FAST_START, LOW_MEMORY, LONG_FORM};
+
+    final String  name;
+    final int     minBufferMs;
+    final int     maxBufferMs;
+    final int     bufferForPlaybackMs;
+    final int     bufferForPlaybackAfterRebufferMs;
+    final int     targetBufferBytes;
+    final boolean prioritizeTimeOverSizeThresholds;
+
+    private BufferingProfile(
+            String name,
+            int minBufferMs,
+            int maxBufferMs,
+            int bufferForPlaybackMs,
+            int bufferForPlaybackAfterRebufferMs,
+            int targetBufferBytes,
+            boolean prioritizeTimeOverSizeThresholds) {
+        this.name = name;
+        this.minBufferMs = minBufferMs;
+        this.maxBufferMs = maxBufferMs;
+        this.bufferForPlaybackMs = bufferForPlaybackMs;
+        this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+        this.targetBufferBytes = targetBufferBytes;
+        this.prioritizeTimeOverSizeThresholds = prioritizeTimeOverSizeThresholds;
+    }
+
+    /**
+     * @throws IllegalArgumentException for unknown presets or inconsistent thresholds.
+     */
+    static BufferingProfile of(Object argument) {
+        if (argument == null) {
+            return DEFAULT;
+        }
+        if (argument instanceof String) {
+            return preset((String) argument);
+        }
+        if (!(argument instanceof Map)) {
+            throw new IllegalArgumentException("bufferingProfile must be a preset name or a map");
+        }
+        Map<?, ?>        values  = (Map<?, ?>) argument;
+        BufferingProfile base    = values.get("name") != null ? preset((String) values.get("name")) : DEFAULT;
+        BufferingProfile profile = new BufferingProfile(
+                values.get("name") != null ? base.name : "custom",
+                intValue(values, "minBufferMs", base.minBufferMs),
+                intValue(values, "maxBufferMs", base.maxBufferMs),
+                intValue(values, "bufferForPlaybackMs", base.bufferForPlaybackMs),
+                intValue(values, "bufferForPlaybackAfterRebufferMs", base.bufferForPlaybackAfterRebufferMs),
+                intValue(values, "targetBufferBytes", base.targetBufferBytes),
+                values.get("prioritizeTimeOverSizeThresholds") != null
+                        ? (Boolean) values.get("prioritizeTimeOverSizeThresholds")
+                        : base.prioritizeTimeOverSizeThresholds);
+        profile.validate();
+        return profile;
+    }
+
+    private static BufferingProfile preset(String name) {
+        for (BufferingProfile preset : PRESETS) {
+            if (preset.name.equals(name)) return preset;
+        }
+        throw new IllegalArgumentException("Unknown buffering profile: " + name);
+    }
+
+    private static int intValue(Map<?, ?> values, String key, int fallback) {
+        Object value = values.get(key);
+        return value != null ? ((Number) value).intValue() : fallback;
+    }
+
+    private void validate() {
+        if (bufferForPlaybackMs < 0
+                || bufferForPlaybackAfterRebufferMs < 0
+                || minBufferMs < bufferForPlaybackMs
+                || minBufferMs < bufferForPlaybackAfterRebufferMs
+                || maxBufferMs < minBufferMs
+                // unset, sized by the selected tracks.
+                || (targetBufferBytes < 0 && targetBufferBytes != DefaultLoadControl.DEFAULT_TARGET_BUFFER_BYTES)) {
+            throw new IllegalArgumentException("Inconsistent buffering profile: " + toMap());
+        }
+    }
+
+    LoadControl createLoadControl(PriorityTaskManager priorityTaskManager) {
+        return new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(
+                        minBufferMs, maxBufferMs, bufferForPlaybackMs, bufferForPlaybackAfterRebufferMs)
+                .setTargetBufferBytes(targetBufferBytes)
+                .setPrioritizeTimeOverSizeThresholds(prioritizeTimeOverSizeThresholds)
+                .setPriorityTaskManager(priorityTaskManager)
+                .createDefaultLoadControl();
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("name", name);
+        map.put("minBufferMs", minBufferMs);
+        map.put("maxBufferMs", maxBufferMs);
+        map.put("bufferForPlaybackMs", bufferForPlaybackMs);
+        map.put("bufferForPlaybackAfterRebufferMs", bufferForPlaybackAfterRebufferMs);
+        map.put("targetBufferBytes", targetBufferBytes);
+        map.put("prioritizeTimeOverSizeThresholds", prioritizeTimeOverSizeThresholds);
+        return map;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BufferingProfile)) return false;
+        BufferingProfile that = (BufferingProfile) o;
+        return minBufferMs == that.minBufferMs
+                && maxBufferMs == that.maxBufferMs
+                && bufferForPlaybackMs == that.bufferForPlaybackMs
+                && bufferForPlaybackAfterRebufferMs == that.bufferForPlaybackAfterRebufferMs
+                && targetBufferBytes == that.targetBufferBytes
+                && prioritizeTimeOverSizeThresholds == that.prioritizeTimeOverSizeThresholds;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = minBufferMs;
+        result = 31 * result + maxBufferMs;
+        result = 31 * result + bufferForPlaybackMs;
+        result = 31 * result + bufferForPlaybackAfterRebufferMs;
+        result = 31 * result + targetBufferBytes;
+        result = 31 * result + (prioritizeTimeOverSizeThresholds ? 1 : 0);
+        return result;
+    }
+}
@@ -0,0 +1,37 @@
+package danielwii.github.io.asuna_video_player;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Time method calls wait for the playback thread and take to handle, reported by
+ * getPluginStats so load runs can track dispatch cost across builds.
+ * <p>
+ * Must be used from the playback thread.
+ */
+final class CallTimings {
+
+    private long calls;
+    private long totalQueueNs;
+    private long maxQueueNs;
+    private long totalHandleNs;
+    private long maxHandleNs;
+
+    void record(long queueNs, long handleNs) {
+        calls++;
+        totalQueueNs += queueNs;
+        maxQueueNs = Math.max(maxQueueNs, queueNs);
+        totalHandleNs += handleNs;
+        maxHandleNs = Math.max(maxHandleNs, handleNs);
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("calls", calls);
+        stats.put("avgQueueUs", calls > 0 ? totalQueueNs / calls / 1000 : 0);
+        stats.put("maxQueueUs", maxQueueNs / 1000);
+        stats.put("avgHandleUs", calls > 0 ? totalHandleNs / calls / 1000 : 0);
+        stats.put("maxHandleUs", maxHandleNs / 1000);
+        return stats;
+    }
+}
@@ -0,0 +1,36 @@
+package danielwii.github.io.asuna_video_player;
+
+/**
+ * Fixed layout of high frequency events packed into a long[], which the codec writes as one
+ * typed array instead of a map of string keys and boxed values. Low frequency events stay maps.
+ * <p>
+ * Element 0 is the header, the schema version above bit 16 and the event type below. A player
+ * packs its events only when create asks for a "compactEvents" version this side speaks.
+ */
+final class CompactEvents {
+
+    static final int SCHEMA_VERSION = 1;
+
+    /**
+     * [header, position, buffered, state, flags]
+     */
+    static final int PROGRESS = 1;
+
+    /**
+     * [header, range count, start, end, ...]
+     */
+    static final int BUFFERING_UPDATE = 2;
+
+    static final long FLAG_PLAYING = 1;
+
+    private CompactEvents() {
+    }
+
+    static boolean isSupported(int version) {
+        return version == SCHEMA_VERSION;
+    }
+
+    static long header(int type) {
+        return ((long) SCHEMA_VERSION << 16) | type;
+    }
+}
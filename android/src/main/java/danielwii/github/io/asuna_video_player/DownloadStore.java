@@ -0,0 +1,420 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.offline.DownloadAction;
+import com.google.android.exoplayer2.offline.DownloadHelper;
+import com.google.android.exoplayer2.offline.DownloadManager;
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.offline.ProgressiveDownloadHelper;
+import com.google.android.exoplayer2.offline.TrackKey;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.source.dash.offline.DashDownloadHelper;
+import com.google.android.exoplayer2.source.hls.offline.HlsDownloadHelper;
+import com.google.android.exoplayer2.source.smoothstreaming.offline.SsDownloadHelper;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import io.flutter.plugin.common.MethodChannel;
+import timber.log.Timber;
+
+/**
+ * Process wide offline store. Downloads progressive, HLS, DASH and SmoothStreaming sources into
+ * a cache that is never evicted, players read from it before going to the network.
+ * <p>
+ * ExoPlayer's DownloadManager runs on a thread of its own, as it outlives plugin instances. Its
+ * action file keeps queued downloads across process death, they resume on the next start. At
+ * most {@link #MAX_PARALLEL_DOWNLOADS} sources download at once, and downloads stop once
+ * {@link #setMaxBytes(long) max bytes} are stored.
+ * <p>
+ * Methods may be called from any thread, results and events are delivered on the main thread.
+ * Opening the cache scans its folder, so it's done on the download thread, {@link #wrap} and
+ * {@link #stats()} wait for it and must not be called from the main thread.
+ */
+final class DownloadStore implements DownloadManager.Listener, Runnable {
+    private static final String TAG = DownloadStore.class.getSimpleName();
+
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final String DOWNLOAD_DIR           = "asuna_video_player_downloads";
+    private static final int    MAX_PARALLEL_DOWNLOADS = 2;
+    private static final int    MIN_RETRY_COUNT        = 5;
+    private static final int    PROGRESS_INTERVAL_MS   = 1000;
+
+    private static DownloadStore instance;
+
+    private final HttpStack        httpStack;
+    private final Handler          handler;
+    private final QueuingEventSink eventSink;
+    private final CountDownLatch   cacheOpened = new CountDownLatch(1);
+
+    // set once on the download thread, before cacheOpened is counted down.
+    private volatile SimpleCache cache;
+
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    // only accessed from the download thread.
+    private DownloadManager downloadManager;
+    private boolean         progressScheduled;
+    private boolean         quotaExceeded;
+
+    private DownloadStore(Context context, final HttpStack httpStack) {
+        final File directory = new File(context.getFilesDir(), DOWNLOAD_DIR);
+        this.httpStack = httpStack;
+        HandlerThread thread = new HandlerThread("asuna-downloads");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+        this.eventSink = new QueuingEventSink(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache = new SimpleCache(new File(directory, "cache"), new NoOpCacheEvictor());
+                } finally {
+                    cacheOpened.countDown();
+                }
+                downloadManager = new DownloadManager(
+                        new DownloaderConstructorHelper(cache, httpStack.newFactory(null, null)),
+                        MAX_PARALLEL_DOWNLOADS,
+                        MIN_RETRY_COUNT,
+                        new File(directory, "actions"));
+                downloadManager.addListener(DownloadStore.this);
+                downloadManager.startDownloads();
+            }
+        });
+    }
+
+    /**
+     * @param httpStack manifests and media are downloaded with, only used by the first call, the
+     *                  store outlives plugin instances.
+     */
+    static synchronized DownloadStore get(Context context, HttpStack httpStack) {
+        if (instance == null) {
+            instance = new DownloadStore(context.getApplicationContext(), httpStack);
+        }
+        return instance;
+    }
+
+    /**
+     * Events of all downloads: "downloadState", "downloadProgress" and "quotaExceeded".
+     */
+    QueuingEventSink eventSink() {
+        return eventSink;
+    }
+
+    void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Waits until the download thread opened the cache, the first call after the process started
+     * may block for the folder scan.
+     */
+    private SimpleCache cache() {
+        try {
+            cacheOpened.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return cache;
+    }
+
+    /**
+     * Reads downloaded data first and everything else from upstream, never writes.
+     */
+    DataSource.Factory wrap(DataSource.Factory upstreamFactory) {
+        SimpleCache cache = cache();
+        if (cache == null) {
+            // interrupted before the cache was opened.
+            return upstreamFactory;
+        }
+        return new CacheDataSourceFactory(
+                cache,
+                upstreamFactory,
+                new FileDataSourceFactory(),
+                null,
+                CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR,
+                null);
+    }
+
+    /**
+     * Queues the source, for adaptive sources with one video quality per group, the best one
+     * within maxBitrate. Replies once the manifest was loaded and the download queued.
+     */
+    void download(final String dataSource, final int maxBitrate, final MethodChannel.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cache.getCacheSpace() >= maxBytes) {
+                    result.error("quota_exceeded", "Downloads exceed " + maxBytes + " bytes", null);
+                    return;
+                }
+                DownloadHelper helper = createHelper(dataSource);
+                helper.prepare(new DownloadHelper.Callback() {
+                    @Override
+                    public void onPrepared(DownloadHelper helper) {
+                        DownloadAction action = helper.getDownloadAction(
+                                Util.getUtf8Bytes(dataSource), selectTracks(helper, maxBitrate));
+                        downloadManager.handleAction(action);
+                        result.success(true);
+                    }
+
+                    @Override
+                    public void onPrepareError(DownloadHelper helper, IOException e) {
+                        Timber.tag(TAG).w("prepare download of %s failed: %s", dataSource, e);
+                        result.error("download_failed", e.getMessage(), null);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the download of the source if any and deletes its data.
+     */
+    void remove(final String dataSource, final MethodChannel.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                downloadManager.handleAction(createHelper(dataSource).getRemoveAction(Util.getUtf8Bytes(dataSource)));
+                if (quotaExceeded) {
+                    // stopped for the quota, not paused, resume with the space freed. If it's still
+                    // exceeded the next progress update stops them again.
+                    quotaExceeded = false;
+                    downloadManager.startDownloads();
+                }
+                result.success(null);
+            }
+        });
+    }
+
+    /**
+     * Pauses or resumes all downloads, progress is kept.
+     */
+    void setPaused(final boolean paused, final MethodChannel.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (paused) {
+                    downloadManager.stopDownloads();
+                } else {
+                    quotaExceeded = false;
+                    downloadManager.startDownloads();
+                }
+                result.success(null);
+            }
+        });
+    }
+
+    void list(final MethodChannel.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Map<String, Object>> downloads = new ArrayList<>();
+                for (DownloadManager.TaskState taskState : downloadManager.getAllTaskStates()) {
+                    if (!taskState.action.isRemoveAction) {
+                        downloads.add(toMap(taskState, new HashMap<String, Object>()));
+                    }
+                }
+                result.success(downloads);
+            }
+        });
+    }
+
+    Map<String, Object> stats() {
+        SimpleCache         cache = cache();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("bytes", cache != null ? cache.getCacheSpace() : 0);
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    private DownloadHelper createHelper(String dataSource) {
+        Uri                uri             = Uri.parse(dataSource);
+        DataSource.Factory manifestFactory = httpStack.newFactory(null, null);
+        // the same content types the players build media sources for.
+        switch (Util.inferContentType(uri.getLastPathSegment())) {
+            case C.TYPE_DASH:
+                return new DashDownloadHelper(uri, manifestFactory);
+            case C.TYPE_HLS:
+                return new HlsDownloadHelper(uri, manifestFactory);
+            case C.TYPE_SS:
+                return new SsDownloadHelper(uri, manifestFactory);
+            default:
+                return new ProgressiveDownloadHelper(uri);
+        }
+    }
+
+    private static List<TrackKey> selectTracks(DownloadHelper helper, int maxBitrate) {
+        List<TrackKey> trackKeys = new ArrayList<>();
+        for (int period = 0; period < helper.getPeriodCount(); period++) {
+            TrackGroupArray trackGroups = helper.getTrackGroups(period);
+            for (int group = 0; group < trackGroups.length; group++) {
+                TrackGroup trackGroup = trackGroups.get(group);
+                if (!isVideo(trackGroup)) {
+                    // audio and text tracks are small, keep them all.
+                    for (int track = 0; track < trackGroup.length; track++) {
+                        trackKeys.add(new TrackKey(period, group, track));
+                    }
+                    continue;
+                }
+                int video = 0;
+                for (int track = 1; track < trackGroup.length; track++) {
+                    if (isBetter(trackGroup.getFormat(track), trackGroup.getFormat(video), maxBitrate)) {
+                        video = track;
+                    }
+                }
+                trackKeys.add(new TrackKey(period, group, video));
+            }
+        }
+        return trackKeys;
+    }
+
+    private static boolean isVideo(TrackGroup trackGroup) {
+        for (int track = 0; track < trackGroup.length; track++) {
+            if (isVideo(trackGroup.getFormat(track))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * HLS variants have no sample mime type, only what the master playlist lists: the codecs and
+     * resolution if given. Variants listing neither still differ from audio renditions, which
+     * always have a name.
+     */
+    private static boolean isVideo(Format format) {
+        if (format.sampleMimeType != null) {
+            return MimeTypes.isVideo(format.sampleMimeType);
+        }
+        if (format.width > 0 || format.height > 0 || MimeTypes.getVideoMediaMimeType(format.codecs) != null) {
+            return true;
+        }
+        return MimeTypes.APPLICATION_M3U8.equals(format.containerMimeType)
+                && format.codecs == null
+                && format.label == null;
+    }
+
+    /**
+     * The highest bitrate within max wins, the lowest bitrate if none fits.
+     */
+    private static boolean isBetter(Format format, Format best, int maxBitrate) {
+        boolean fits     = format.bitrate <= maxBitrate;
+        boolean bestFits = best.bitrate <= maxBitrate;
+        if (fits != bestFits) {
+            return fits;
+        }
+        return fits ? format.bitrate > best.bitrate : format.bitrate < best.bitrate;
+    }
+
+    private static Map<String, Object> toMap(DownloadManager.TaskState taskState, Map<String, Object> map) {
+        map.put("uri", Util.fromUtf8Bytes(taskState.action.data));
+        map.put("state", stateName(taskState.state));
+        map.put("percentage", taskState.downloadPercentage);
+        map.put("bytes", taskState.downloadedBytes);
+        return map;
+    }
+
+    private static String stateName(int state) {
+        switch (state) {
+            case DownloadManager.TaskState.STATE_QUEUED:
+                return "queued";
+            case DownloadManager.TaskState.STATE_STARTED:
+                return "downloading";
+            case DownloadManager.TaskState.STATE_COMPLETED:
+                return "completed";
+            case DownloadManager.TaskState.STATE_CANCELED:
+                return "canceled";
+            default:
+                return "failed";
+        }
+    }
+
+    private void scheduleProgress() {
+        if (!progressScheduled) {
+            progressScheduled = true;
+            handler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Sends the progress of running downloads, the manager only reports state changes.
+     */
+    @Override
+    public void run() {
+        progressScheduled = false;
+        boolean running = false;
+        for (DownloadManager.TaskState taskState : downloadManager.getAllTaskStates()) {
+            if (taskState.state != DownloadManager.TaskState.STATE_STARTED || taskState.action.isRemoveAction) {
+                continue;
+            }
+            running = true;
+            Map<String, Object> event = new HashMap<>();
+            event.put("event", "downloadProgress");
+            eventSink.success(toMap(taskState, event));
+        }
+        if (running && !quotaExceeded && cache.getCacheSpace() > maxBytes) {
+            Timber.tag(TAG).w("downloads exceed %d bytes, stop downloading", maxBytes);
+            quotaExceeded = true;
+            downloadManager.stopDownloads();
+            Map<String, Object> event = new HashMap<>();
+            event.put("event", "quotaExceeded");
+            event.put("bytes", cache.getCacheSpace());
+            event.put("maxBytes", maxBytes);
+            eventSink.success(event);
+            return;
+        }
+        if (running) {
+            scheduleProgress();
+        }
+    }
+
+    // --------------------------------------------------------------
+    // DownloadManager.Listener
+    // --------------------------------------------------------------
+
+    @Override
+    public void onInitialized(DownloadManager downloadManager) {
+        Timber.tag(TAG).d("restored %d downloads", downloadManager.getDownloadCount());
+    }
+
+    @Override
+    public void onTaskStateChanged(DownloadManager downloadManager, DownloadManager.TaskState taskState) {
+        if (taskState.action.isRemoveAction) {
+            return;
+        }
+        Map<String, Object> event = new HashMap<>();
+        event.put("event", "downloadState");
+        eventSink.success(toMap(taskState, event));
+        if (taskState.state == DownloadManager.TaskState.STATE_STARTED) {
+            scheduleProgress();
+        }
+    }
+
+    @Override
+    public void onIdle(DownloadManager downloadManager) {
+        handler.removeCallbacks(this);
+        progressScheduled = false;
+    }
+}
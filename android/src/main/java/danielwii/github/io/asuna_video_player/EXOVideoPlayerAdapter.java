@@ -8,79 +8,124 @@ import android.view.Surface;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.ExoPlaybackException;
-import com.google.android.exoplayer2.ExoPlayerFactory;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SeekParameters;
 import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.analytics.AnalyticsListener;
 import com.google.android.exoplayer2.audio.AudioAttributes;
 import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.source.ConcatenatingMediaSource;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.dash.DashMediaSource;
 import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
+import com.google.android.exoplayer2.source.hls.HlsDataSourceFactory;
 import com.google.android.exoplayer2.source.hls.HlsMediaSource;
 import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
 import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
-import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
-import com.google.android.exoplayer2.util.Util;
 
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
-import io.flutter.plugin.common.EventChannel;
-import io.flutter.plugin.common.MethodChannel;
-import io.flutter.view.TextureRegistry;
 import timber.log.Timber;
 
 public class EXOVideoPlayerAdapter extends AbstractAsunaVideoPlayer {
     private static final String TAG = EXOVideoPlayerAdapter.class.getSimpleName();
 
+    private final ExoPlayerPool                 playerPool;
+    private final BufferingProfile              bufferingProfile;
+    private final ExoPlayerPool.PooledPlayer    pooledPlayer;
+    private final TrackConstraints              trackConstraints = new TrackConstraints();
     private SimpleExoPlayer                     exoPlayer;
-    private EventChannel                        eventChannel;
-    private QueuingEventSink                    eventSink     = new QueuingEventSink();
-    private TextureRegistry.SurfaceTextureEntry textureEntry;
-    private Surface                             surface;
+    private final Context                       context;
+    private final MediaCache                    mediaCache;
+    private final DownloadStore                 downloads;
+    private final ManifestCache                 manifestCache;
+    // sent with every request of every playlist item.
+    private final Map<String, String>           headers;
+    // every source is played as a playlist, so items can be added at any time.
+    private final ConcatenatingMediaSource      playlist;
+    private int                                 currentItem   = 0;
+    private boolean                             isSuspended   = false;
+    private Player.EventListener                eventListener;
+    // sizes the texture buffer, reported by the renderer before the first frame of a size.
+    private final AnalyticsListener             videoSizeListener = new AnalyticsListener() {
+        @Override
+        public void onVideoSizeChanged(
+                EventTime eventTime, int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
+            texture.setVideoSize(width, height);
+            if (fanOut != null) {
+                fanOut.setVideoSize(width, height);
+            }
+        }
+    };
+    private final QueuingEventSink              eventSink;
+    private final PlaybackMetrics               metrics;
+    private final PlayerStateMachine            stateMachine;
+    private final VideoTexture                  texture;
+    // set while the player is shown on more than its own texture.
+    private FrameFanOut                         fanOut;
+    private ProgressTicker                      progressTicker;
     private boolean                             isInitialized = false;
 
+    // a drag on the progress bar requests many seeks, only the latest waits for the one in flight.
+    private boolean        isSeeking;
+    private long           pendingSeekMs = C.TIME_UNSET;
+    private SeekParameters pendingSeekParameters;
+    private long           seeksRequested;
+    private long           seeksCoalesced;
+    // starts of the traced seek and prepare, 0 when none is in flight or tracing is off.
+    private long           seekBeganAtNs;
+    private long           prepareBeganAtNs;
+
+    /**
+     * Must be called on the playback thread, the player is bound to its looper.
+     */
     EXOVideoPlayerAdapter(
-            Context context,
-            EventChannel eventChannel,
-            TextureRegistry.SurfaceTextureEntry textureEntry,
+            PlayerResources resources,
+            QueuingEventSink eventSink,
+            VideoTexture texture,
             String dataSource,
-            MethodChannel.Result result) {
-        this.eventChannel = eventChannel;
-        this.textureEntry = textureEntry;
+            Map<String, String> headers,
+            BufferingProfile bufferingProfile) {
+        this.eventSink = eventSink;
+        this.headers = headers;
+        this.metrics = new PlaybackMetrics(eventSink, texture.id());
+        this.stateMachine = new PlayerStateMachine(eventSink);
+        this.texture = texture;
+        this.playerPool = resources.playerPool;
+        this.bufferingProfile = bufferingProfile;
 
-        Timber.tag(TAG).d("create simple exo-player...");
-        DefaultTrackSelector trackSelector = new DefaultTrackSelector();
-        exoPlayer = ExoPlayerFactory.newSimpleInstance(context, trackSelector);
+        this.context = resources.context;
+        this.mediaCache = resources.mediaCache;
+        this.downloads = resources.downloads;
+        this.manifestCache = resources.manifestCache;
 
-        Uri uri = Uri.parse(dataSource);
+        pooledPlayer = playerPool.acquire(bufferingProfile);
+        exoPlayer = pooledPlayer.player;
+        try {
+            exoPlayer.addAnalyticsListener(metrics);
 
-        DataSource.Factory dataSourceFactory;
-        if (isFileOrAsset(uri)) {
-            dataSourceFactory = new DefaultDataSourceFactory(context, "ExoPlayer");
-        } else {
-            dataSourceFactory = new DefaultHttpDataSourceFactory(
-                    "ExoPlayer",
-                    null,
-                    DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS,
-                    DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS,
-                    true);
-        }
+            playlist = new ConcatenatingMediaSource(buildMediaSource(dataSource));
+            prepareBeganAtNs = Tracing.begin();
+            exoPlayer.prepare(playlist);
 
-        MediaSource mediaSource = buildMediaSource(uri, dataSourceFactory, context);
-        exoPlayer.prepare(mediaSource);
+            setupVideoPlayer();
+        } catch (RuntimeException e) {
+            // nobody can dispose a player that was never returned, the pooled one goes back now.
+            dispose();
+            throw e;
+        }
+    }
 
-        setupVideoPlayer(eventChannel, textureEntry, result);
+    @Override
+    public State getState() {
+        return stateMachine.state();
     }
 
     @Override
@@ -105,8 +150,60 @@ public class EXOVideoPlayerAdapter extends AbstractAsunaVideoPlayer {
     }
 
     @Override
-    public void seekTo(int location) {
-        exoPlayer.seekTo(location);
+    public void seekTo(int location, SeekMode mode) {
+        seeksRequested++;
+        SeekParameters seekParameters = toSeekParameters(mode);
+        if (isSeeking) {
+            if (pendingSeekMs != C.TIME_UNSET) {
+                seeksCoalesced++;
+            }
+            pendingSeekMs = location;
+            pendingSeekParameters = seekParameters;
+            return;
+        }
+        seek(location, seekParameters);
+    }
+
+    private void seek(long positionMs, SeekParameters seekParameters) {
+        if (!isSeeking) {
+            seekBeganAtNs = Tracing.begin();
+        }
+        isSeeking = true;
+        exoPlayer.setSeekParameters(seekParameters);
+        exoPlayer.seekTo(positionMs);
+    }
+
+    private void onSeekProcessed() {
+        if (!isSeeking) {
+            // a seek of next, previous or the playlist.
+            return;
+        }
+        if (pendingSeekMs != C.TIME_UNSET) {
+            long positionMs = pendingSeekMs;
+            pendingSeekMs = C.TIME_UNSET;
+            seek(positionMs, pendingSeekParameters);
+            return;
+        }
+        isSeeking = false;
+        Tracing.end(texture.id(), "seek", seekBeganAtNs);
+        Map<String, Object> event = new HashMap<>();
+        event.put("event", "seekCompleted");
+        event.put("position", exoPlayer.getCurrentPosition());
+        event.put("timestamp", System.currentTimeMillis());
+        eventSink.success(event);
+    }
+
+    private static SeekParameters toSeekParameters(SeekMode mode) {
+        switch (mode) {
+            case CLOSEST_SYNC:
+                return SeekParameters.CLOSEST_SYNC;
+            case PREVIOUS_SYNC:
+                return SeekParameters.PREVIOUS_SYNC;
+            case NEXT_SYNC:
+                return SeekParameters.NEXT_SYNC;
+            default:
+                return SeekParameters.EXACT;
+        }
     }
 
     @Override
@@ -114,38 +211,213 @@ public class EXOVideoPlayerAdapter extends AbstractAsunaVideoPlayer {
         return exoPlayer.getCurrentPosition();
     }
 
+    @Override
+    public void setProgressInterval(int intervalMs) {
+        progressTicker.setInterval(intervalMs);
+    }
+
+    @Override
+    public void addItem(String dataSource, int index) {
+        MediaSource mediaSource = buildMediaSource(dataSource);
+        if (index < 0 || index > playlist.getSize()) {
+            playlist.addMediaSource(mediaSource);
+        } else {
+            playlist.addMediaSource(index, mediaSource);
+        }
+    }
+
+    @Override
+    public void removeItem(int index) {
+        playlist.removeMediaSource(index);
+    }
+
+    @Override
+    public void moveItem(int fromIndex, int toIndex) {
+        playlist.moveMediaSource(fromIndex, toIndex);
+    }
+
+    @Override
+    public void next() {
+        if (exoPlayer.hasNext()) {
+            exoPlayer.next();
+        }
+    }
+
+    @Override
+    public void previous() {
+        if (exoPlayer.hasPrevious()) {
+            exoPlayer.previous();
+        }
+    }
+
+    @Override
+    public void setViewportSize(int width, int height) {
+        trackConstraints.viewportWidth = width > 0 ? width : Integer.MAX_VALUE;
+        trackConstraints.viewportHeight = height > 0 ? height : Integer.MAX_VALUE;
+        trackConstraints.apply(pooledPlayer.trackSelector);
+        texture.setDisplaySize(width, height);
+    }
+
+    @Override
+    public void setTrackConstraints(int maxWidth, int maxHeight, int maxBitrate, boolean preferLowestWhenHidden) {
+        trackConstraints.maxVideoWidth = maxWidth;
+        trackConstraints.maxVideoHeight = maxHeight;
+        trackConstraints.maxVideoBitrate = maxBitrate;
+        trackConstraints.preferLowestWhenHidden = preferLowestWhenHidden;
+        trackConstraints.apply(pooledPlayer.trackSelector);
+    }
+
+    @Override
+    public void setVisibility(boolean visible) {
+        if (trackConstraints.visible != visible) {
+            trackConstraints.visible = visible;
+            trackConstraints.apply(pooledPlayer.trackSelector);
+            // the decoder frees its output buffers while it has no surface, audio keeps playing.
+            if (visible) {
+                exoPlayer.setVideoSurface(videoSurface());
+            } else {
+                exoPlayer.clearVideoSurface();
+            }
+            texture.setAttached(visible);
+        }
+    }
+
+    /**
+     * Renders into fanOut instead of the texture, or into the texture again when null. Blocks
+     * until the decoder left the previous surface.
+     */
+    void setFanOut(FrameFanOut fanOut) {
+        this.fanOut = fanOut;
+        Format videoFormat = exoPlayer.getVideoFormat();
+        if (fanOut != null && videoFormat != null) {
+            fanOut.setVideoSize(videoFormat.width, videoFormat.height);
+        }
+        if (trackConstraints.visible) {
+            exoPlayer.setVideoSurface(videoSurface());
+        }
+    }
+
+    private Surface videoSurface() {
+        return fanOut != null ? fanOut.inputSurface() : texture.surface();
+    }
+
+    @Override
+    public void suspend() {
+        if (isSuspended) {
+            return;
+        }
+        isSuspended = true;
+        // releases decoders and buffers, position and playWhenReady are kept.
+        exoPlayer.stop(false);
+    }
+
+    @Override
+    public void resume() {
+        if (!isSuspended) {
+            return;
+        }
+        isSuspended = false;
+        prepareBeganAtNs = Tracing.begin();
+        exoPlayer.prepare(playlist, false, false);
+    }
+
+    @Override
+    public boolean isSuspended() {
+        return isSuspended;
+    }
+
+    @Override
+    public void setStatsInterval(int intervalMs) {
+        metrics.setReportInterval(intervalMs);
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("playback", metrics.toMap());
+        stats.put("events", eventSink.stats());
+        Map<String, Object> seeks = new HashMap<>();
+        seeks.put("requested", seeksRequested);
+        seeks.put("coalesced", seeksCoalesced);
+        stats.put("seeks", seeks);
+        stats.put("state", stateMachine.state().name);
+        stats.put("stateTransitions", stateMachine.transitions());
+        return stats;
+    }
+
+    @Override
+    PlaybackMetrics metrics() {
+        return metrics;
+    }
+
     @Override
     public void dispose() {
-        if (isInitialized) {
-            exoPlayer.stop();
+        if (progressTicker != null) {
+            progressTicker.stop();
         }
-        textureEntry.release();
-        eventChannel.setStreamHandler(null);
-        if (surface != null) {
-            surface.release();
+        metrics.stop();
+        if (eventListener != null) {
+            exoPlayer.removeListener(eventListener);
         }
-        if (exoPlayer != null) {
-            exoPlayer.release();
+        exoPlayer.removeAnalyticsListener(metrics);
+        exoPlayer.removeAnalyticsListener(videoSizeListener);
+        stateMachine.release(exoPlayer.getCurrentPosition());
+        // detaches the surface, the player goes back to the pool.
+        // the texture itself is recycled by the plugin on the main thread.
+        playerPool.recycle(pooledPlayer);
+        texture.setAttached(false);
+    }
+
+    private MediaSource buildMediaSource(String dataSource) {
+        long beganAtNs = Tracing.begin();
+        Uri  uri       = Uri.parse(dataSource);
+
+        DataSource.Factory dataSourceFactory;
+        DataSource.Factory manifestDataSourceFactory;
+        if (isFileOrAsset(uri)) {
+            dataSourceFactory = new DefaultDataSourceFactory(context, "ExoPlayer");
+            manifestDataSourceFactory = dataSourceFactory;
+        } else {
+            DataSource.Factory upstreamFactory = mediaCache.newUpstreamFactory(headers);
+            // manifests are kept in memory only, for as long as they can't go stale. Downloaded
+            // ones are read back, so downloads play offline.
+            manifestDataSourceFactory = manifestCache.wrap(downloads.wrap(upstreamFactory));
+            dataSourceFactory = downloads.wrap(mediaCache.wrap(upstreamFactory));
         }
+        MediaSource mediaSource = buildMediaSource(uri, dataSourceFactory, manifestDataSourceFactory, context);
+        Tracing.end(texture.id(), "buildMediaSource", beganAtNs);
+        return mediaSource;
     }
 
     private MediaSource buildMediaSource(
-            Uri uri, DataSource.Factory mediaDataSourceFactory, Context context) {
-        int type = Util.inferContentType(uri.getLastPathSegment());
-        Timber.tag(TAG).d("generate media-source by type %d", type);
+            Uri uri,
+            final DataSource.Factory mediaDataSourceFactory,
+            final DataSource.Factory manifestDataSourceFactory,
+            Context context) {
+        int type = manifestCache.contentType(uri.toString());
+        if (Tracing.isEnabled()) {
+            Timber.tag(TAG).d("generate media-source by type %d", type);
+        }
         switch (type) {
             case C.TYPE_SS:
                 return new SsMediaSource.Factory(
                         new DefaultSsChunkSource.Factory(mediaDataSourceFactory),
-                        new DefaultDataSourceFactory(context, null, mediaDataSourceFactory)
+                        new DefaultDataSourceFactory(context, null, manifestDataSourceFactory)
                 ).createMediaSource(uri);
             case C.TYPE_DASH:
                 return new DashMediaSource.Factory(
                         new DefaultDashChunkSource.Factory(mediaDataSourceFactory),
-                        new DefaultDataSourceFactory(context, null, mediaDataSourceFactory)
+                        new DefaultDataSourceFactory(context, null, manifestDataSourceFactory)
                 ).createMediaSource(uri);
             case C.TYPE_HLS:
-                return new HlsMediaSource.Factory(mediaDataSourceFactory).createMediaSource(uri);
+                return new HlsMediaSource.Factory(new HlsDataSourceFactory() {
+                    @Override
+                    public DataSource createDataSource(int dataType) {
+                        return dataType == C.DATA_TYPE_MANIFEST
+                                ? manifestDataSourceFactory.createDataSource()
+                                : mediaDataSourceFactory.createDataSource();
+                    }
+                }).createMediaSource(uri);
             case C.TYPE_OTHER:
                 /*
                 DefaultExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
@@ -158,36 +430,28 @@ public class EXOVideoPlayerAdapter extends AbstractAsunaVideoPlayer {
         }
     }
 
-    private void setupVideoPlayer(
-            EventChannel eventChannel,
-            TextureRegistry.SurfaceTextureEntry textureEntry,
-            MethodChannel.Result result) {
-        Timber.tag(TAG).d("exo-player setupVideoPlayer...%s", textureEntry.id());
-        eventChannel.setStreamHandler(new EventChannel.StreamHandler() {
-            @Override
-            public void onListen(Object arguments, EventChannel.EventSink sink) {
-                Timber.tag(TAG).d("eventChannel.onListen: %s", sink);
-                eventSink.setDelegate(sink);
-            }
-
-            @Override
-            public void onCancel(Object arguments) { eventSink.setDelegate(null); }
-        });
-
-        Timber.tag(TAG).d("exo-player setupVideoPlayer... create surface...");
-        surface = new Surface(textureEntry.surfaceTexture());
-        exoPlayer.setVideoSurface(surface);
-        Timber.tag(TAG).d("exo-player setupVideoPlayer... setup audio attributes...");
+    private void setupVideoPlayer() {
+        exoPlayer.setVideoSurface(texture.surface());
+        texture.setAttached(true);
+        exoPlayer.addAnalyticsListener(videoSizeListener);
         setAudioAttributes(exoPlayer);
 
-        exoPlayer.addListener(new Player.EventListener() {
+        progressTicker = new ProgressTicker(exoPlayer, eventSink);
+        eventListener = new Player.EventListener() {
             @Override
             public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+                stateMachine.update(playWhenReady, playbackState, exoPlayer.getCurrentPosition());
+                progressTicker.update();
                 if (playbackState == Player.STATE_BUFFERING) {
                     sendBufferingUpdate();
                 } else if (playbackState == Player.STATE_READY) {
+                    if (prepareBeganAtNs != 0) {
+                        Tracing.end(texture.id(), "prepare", prepareBeganAtNs);
+                        prepareBeganAtNs = 0;
+                    }
                     if (!isInitialized) {
                         isInitialized = true;
+                        metrics.onInitialized();
                         sendInitialized();
                     }
                 } else if (playbackState == Player.STATE_ENDED) {
@@ -199,27 +463,54 @@ public class EXOVideoPlayerAdapter extends AbstractAsunaVideoPlayer {
 
             @Override
             public void onPlayerError(ExoPlaybackException error) {
+                // a failed player may never acknowledge the seek in flight.
+                isSeeking = false;
+                pendingSeekMs = C.TIME_UNSET;
+                stateMachine.error(exoPlayer.getCurrentPosition());
                 if (eventSink != null) {
                     eventSink.error("VideoError", "Video player had error: " + error, null);
                 }
             }
-        });
 
-        Timber.tag(TAG).d("exo-player setupVideoPlayer... send reply...");
-        Map<String, Object> reply = new HashMap<>();
-        reply.put("textureId", textureEntry.id());
-        result.success(reply);
+            @Override
+            public void onPositionDiscontinuity(int reason) {
+                progressTicker.update();
+                onCurrentItemMaybeChanged(reason == Player.DISCONTINUITY_REASON_PERIOD_TRANSITION);
+            }
+
+            @Override
+            public void onSeekProcessed() {
+                EXOVideoPlayerAdapter.this.onSeekProcessed();
+            }
+
+            @Override
+            public void onTimelineChanged(Timeline timeline, Object manifest, int reason) {
+                // items were added, removed or moved around the current one.
+                onCurrentItemMaybeChanged(false);
+            }
+        };
+        exoPlayer.addListener(eventListener);
     }
 
-    public void sendBufferingUpdate() {
+    private void onCurrentItemMaybeChanged(boolean isTransition) {
+        int index = exoPlayer.getCurrentWindowIndex();
+        if (index == currentItem) {
+            return;
+        }
         Map<String, Object> event = new HashMap<>();
-        event.put("event", "bufferingUpdate");
-        List<? extends Number> range = Arrays.asList(0, exoPlayer.getBufferedPercentage());
-        // iOS supports a list of buffered ranges, so here is a list with a single range.
-        event.put("values", Collections.singletonList(range));
+        event.put("event", "itemChanged");
+        event.put("index", index);
+        event.put("previousIndex", currentItem);
+        event.put("transition", isTransition);
+        event.put("duration", exoPlayer.getDuration());
+        currentItem = index;
         eventSink.success(event);
     }
 
+    public void sendBufferingUpdate() {
+        sendBufferedPercentage(eventSink, exoPlayer.getBufferedPercentage());
+    }
+
     @SuppressWarnings("deprecation")
     private static void setAudioAttributes(SimpleExoPlayer player) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -232,24 +523,32 @@ public class EXOVideoPlayerAdapter extends AbstractAsunaVideoPlayer {
 
     private void sendInitialized() {
         if (isInitialized) {
-            Map<String, Object> event = new HashMap<>();
-            event.put("event", "initialized");
-            event.put("duration", exoPlayer.getDuration());
-
-            if (exoPlayer.getVideoFormat() != null) {
-                Format videoFormat     = exoPlayer.getVideoFormat();
-                int    width           = videoFormat.width;
-                int    height          = videoFormat.height;
-                int    rotationDegrees = videoFormat.rotationDegrees;
-                // Switch the width/height if video was taken in portrait mode
-                if (rotationDegrees == 90 || rotationDegrees == 270) {
-                    width = exoPlayer.getVideoFormat().height;
-                    height = exoPlayer.getVideoFormat().width;
-                }
-                event.put("width", width);
-                event.put("height", height);
-            }
+            eventSink.success(initializedEvent());
+        }
+    }
+
+    /**
+     * Sends "initialized" to a sink which starts listening to this player later, e.g. of another
+     * texture showing it. Carries whether the player is playing, so the new listener keeps that.
+     */
+    void sendInitialized(QueuingEventSink eventSink) {
+        if (isInitialized) {
+            Map<String, Object> event = initializedEvent();
+            event.put("isPlaying", exoPlayer.getPlayWhenReady());
             eventSink.success(event);
         }
     }
+
+    private Map<String, Object> initializedEvent() {
+        Format videoFormat = exoPlayer.getVideoFormat();
+        if (videoFormat == null) {
+            return initializedEvent(exoPlayer.getDuration(), 0, 0, 0, bufferingProfile);
+        }
+        return initializedEvent(
+                exoPlayer.getDuration(),
+                videoFormat.width,
+                videoFormat.height,
+                videoFormat.rotationDegrees,
+                bufferingProfile);
+    }
 }
@@ -0,0 +1,168 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Picks the engine of "auto" players per container, from the startup times and dropped frames
+ * recorded by previous sessions. Every session of either engine is recorded, the averages are
+ * kept in shared preferences so they survive restarts.
+ * <p>
+ * Each engine plays a container {@link #MIN_SAMPLES} times before they are compared, after that
+ * every {@link #EXPLORE_EVERY}th session still goes to the other engine to keep its numbers
+ * current. Sources ijk can't play always go to exo, so does everything where the ijk natives
+ * aren't available.
+ */
+final class EngineSelector {
+    private static final String TAG = EngineSelector.class.getSimpleName();
+
+    private static final String PREFERENCES = "asuna_video_player_engines";
+
+    private static final int   MIN_SAMPLES           = 3;
+    private static final int   EXPLORE_EVERY         = 10;
+    // weight of the latest session in the moving averages.
+    private static final float ALPHA                 = 0.2f;
+    // a session that failed before its first frame counts as this slow a start.
+    private static final long  FAILURE_STARTUP_MS    = 10000;
+    // dropped frames need some playback to mean anything.
+    private static final long  MIN_PLAYING_MS        = 5000;
+    // one dropped frame per minute weighs as much as this much startup time.
+    private static final long  DROPPED_FRAME_COST_MS = 20;
+
+    private final SharedPreferences   preferences;
+    private final Map<String, Sample> samples = new HashMap<>();
+    private       int                 decisions;
+
+    private static final class Sample {
+        int   count;
+        float startupMs;
+        float droppedPerMinute;
+
+        float score() {
+            return startupMs + droppedPerMinute * DROPPED_FRAME_COST_MS;
+        }
+    }
+
+    EngineSelector(Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * "hls", "dash", "ss" or the file extension, e.g. "mp4" or "flv".
+     */
+    static String containerOf(String dataSource) {
+        String segment = Uri.parse(dataSource).getLastPathSegment();
+        switch (Util.inferContentType(segment)) {
+            case C.TYPE_HLS:
+                return "hls";
+            case C.TYPE_DASH:
+                return "dash";
+            case C.TYPE_SS:
+                return "ss";
+            default:
+                int dot = segment != null ? segment.lastIndexOf('.') : -1;
+                return dot >= 0 && dot < segment.length() - 1
+                        ? segment.substring(dot + 1).toLowerCase(Locale.US) : "other";
+        }
+    }
+
+    AsunaVideoPlayerPlugin.PlayerType select(String dataSource) {
+        if (!IJKVideoPlayerAdapter.isAvailable() || !IJKVideoPlayerAdapter.isSupported(dataSource)) {
+            return AsunaVideoPlayerPlugin.PlayerType.EXO_PLAYER;
+        }
+        String container = containerOf(dataSource);
+        Sample exo       = sample(container, AsunaVideoPlayerPlugin.PlayerType.EXO_PLAYER);
+        Sample ijk       = sample(container, AsunaVideoPlayerPlugin.PlayerType.IJK_PLAYER);
+        if (exo.count < MIN_SAMPLES) {
+            return AsunaVideoPlayerPlugin.PlayerType.EXO_PLAYER;
+        }
+        if (ijk.count < MIN_SAMPLES) {
+            return AsunaVideoPlayerPlugin.PlayerType.IJK_PLAYER;
+        }
+        boolean exoIsBetter = exo.score() <= ijk.score();
+        if (++decisions % EXPLORE_EVERY == 0) {
+            exoIsBetter = !exoIsBetter;
+        }
+        Timber.tag(TAG).d("%s: exo %.0f, ijk %.0f", container, exo.score(), ijk.score());
+        return exoIsBetter ? AsunaVideoPlayerPlugin.PlayerType.EXO_PLAYER : AsunaVideoPlayerPlugin.PlayerType.IJK_PLAYER;
+    }
+
+    /**
+     * Called when a player is disposed, sessions that never started nor failed are skipped.
+     */
+    void record(String container, AsunaVideoPlayerPlugin.PlayerType type, PlaybackMetrics metrics) {
+        long startupMs = metrics.timeToFirstFrameMs();
+        if (startupMs < 0) {
+            if (metrics.errorCount() == 0) {
+                return;
+            }
+            startupMs = FAILURE_STARTUP_MS;
+        }
+        Sample sample = sample(container, type);
+        sample.startupMs = average(sample, sample.startupMs, startupMs);
+        long playingMs = metrics.playingMs();
+        if (playingMs >= MIN_PLAYING_MS) {
+            sample.droppedPerMinute = average(sample, sample.droppedPerMinute, metrics.droppedFrames() * 60000f / playingMs);
+        }
+        sample.count++;
+        preferences.edit()
+                .putString(key(container, type), sample.count + "," + sample.startupMs + "," + sample.droppedPerMinute)
+                .apply();
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (String key : preferences.getAll().keySet()) {
+            Sample              sample = sampleOf(key);
+            Map<String, Object> values = new HashMap<>();
+            values.put("sessions", sample.count);
+            values.put("startupMs", sample.startupMs);
+            values.put("droppedPerMinute", sample.droppedPerMinute);
+            stats.put(key, values);
+        }
+        return stats;
+    }
+
+    private static float average(Sample sample, float average, float value) {
+        return sample.count == 0 ? value : average + ALPHA * (value - average);
+    }
+
+    private Sample sample(String container, AsunaVideoPlayerPlugin.PlayerType type) {
+        return sampleOf(key(container, type));
+    }
+
+    private Sample sampleOf(String key) {
+        Sample sample = samples.get(key);
+        if (sample == null) {
+            sample = new Sample();
+            String value = preferences.getString(key, null);
+            if (value != null) {
+                try {
+                    String[] parts = value.split(",");
+                    sample.count = Integer.parseInt(parts[0]);
+                    sample.startupMs = Float.parseFloat(parts[1]);
+                    sample.droppedPerMinute = Float.parseFloat(parts[2]);
+                } catch (RuntimeException e) {
+                    Timber.tag(TAG).w(e, "drop invalid sample %s", key);
+                    sample = new Sample();
+                }
+            }
+            samples.put(key, sample);
+        }
+        return sample;
+    }
+
+    private static String key(String container, AsunaVideoPlayerPlugin.PlayerType type) {
+        return container + "/" + type.name;
+    }
+}
@@ -0,0 +1,197 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer2.DefaultRenderersFactory;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.analytics.AnalyticsCollector;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Bounded pool of idle players, so a create after a dispose skips building decoders, renderers
+ * and load control again. Idle players are stopped and have no surface attached.
+ * <p>
+ * The load control can't be changed after construction, so players are only reused for the
+ * same {@link BufferingProfile}.
+ * <p>
+ * Players are bound to the given looper, the pool must only be used from its thread.
+ */
+final class ExoPlayerPool implements ComponentCallbacks2 {
+    private static final String TAG = ExoPlayerPool.class.getSimpleName();
+
+    static final int DEFAULT_MAX_SIZE = 2;
+
+    private final Context                     context;
+    private final Looper                      looper;
+    // memory callbacks arrive on the main thread, they are handled on the looper's thread.
+    private final Handler                     handler;
+    private final PriorityTaskManager         priorityTaskManager;
+    // shared, so every new player starts with the estimate of the previous ones.
+    private final DefaultBandwidthMeter       bandwidthMeter;
+    // most recently recycled last, evictions take from the head.
+    private final ArrayDeque<PooledPlayer>    idlePlayers = new ArrayDeque<>();
+    private       int                         maxSize     = DEFAULT_MAX_SIZE;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    static final class PooledPlayer {
+        final BufferingProfile     profile;
+        final SimpleExoPlayer      player;
+        final DefaultTrackSelector trackSelector;
+
+        private PooledPlayer(BufferingProfile profile, SimpleExoPlayer player, DefaultTrackSelector trackSelector) {
+            this.profile = profile;
+            this.player = player;
+            this.trackSelector = trackSelector;
+        }
+    }
+
+    ExoPlayerPool(
+            Context context,
+            Looper looper,
+            PriorityTaskManager priorityTaskManager,
+            DefaultBandwidthMeter bandwidthMeter) {
+        this.context = context.getApplicationContext();
+        this.looper = looper;
+        this.handler = new Handler(looper);
+        this.priorityTaskManager = priorityTaskManager;
+        this.bandwidthMeter = bandwidthMeter;
+        this.context.registerComponentCallbacks(this);
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        evict(this.maxSize);
+    }
+
+    PooledPlayer acquire(BufferingProfile profile) {
+        Iterator<PooledPlayer> iterator = idlePlayers.descendingIterator();
+        while (iterator.hasNext()) {
+            PooledPlayer idlePlayer = iterator.next();
+            if (idlePlayer.profile.equals(profile)) {
+                iterator.remove();
+                hits++;
+                return idlePlayer;
+            }
+        }
+        misses++;
+        Timber.tag(TAG).d("pool miss, create simple exo-player with %s buffering...", profile.name);
+        // buffering players take priority over preloads sharing the same task manager.
+        LoadControl          loadControl   = profile.createLoadControl(priorityTaskManager);
+        DefaultTrackSelector trackSelector = new DefaultTrackSelector();
+        SimpleExoPlayer player = ExoPlayerFactory.newSimpleInstance(
+                context,
+                new DefaultRenderersFactory(context),
+                trackSelector,
+                loadControl,
+                null,
+                bandwidthMeter,
+                new AnalyticsCollector.Factory(),
+                looper);
+        return new PooledPlayer(profile, player, trackSelector);
+    }
+
+    /**
+     * Takes back a player whose listeners have been removed by its previous owner.
+     */
+    void recycle(PooledPlayer pooledPlayer) {
+        SimpleExoPlayer player = pooledPlayer.player;
+        player.stop(true);
+        player.clearVideoSurface();
+        player.setPlayWhenReady(false);
+        player.setRepeatMode(Player.REPEAT_MODE_OFF);
+        player.setVolume(1f);
+        player.setSeekParameters(SeekParameters.DEFAULT);
+        pooledPlayer.trackSelector.setParameters(DefaultTrackSelector.Parameters.DEFAULT);
+        if (maxSize == 0) {
+            player.release();
+            return;
+        }
+        idlePlayers.addLast(pooledPlayer);
+        evict(maxSize);
+    }
+
+    /**
+     * Releases all idle players, the pool stays usable.
+     */
+    void clear() {
+        evict(0);
+    }
+
+    void dispose() {
+        clear();
+        handler.removeCallbacksAndMessages(null);
+        context.unregisterComponentCallbacks(this);
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("idle", idlePlayers.size());
+        stats.put("maxSize", maxSize);
+        return stats;
+    }
+
+    private void evict(int keep) {
+        while (idlePlayers.size() > keep) {
+            idlePlayers.pollFirst().player.release();
+            evictions++;
+        }
+    }
+
+    // --------------------------------------------------------------
+    // ComponentCallbacks2
+    // --------------------------------------------------------------
+
+    @Override
+    public void onTrimMemory(final int level) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                trimMemory(level);
+            }
+        });
+    }
+
+    @Override
+    public void onLowMemory() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                clear();
+            }
+        });
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void trimMemory(int level) {
+        Timber.tag(TAG).d("onTrimMemory %d, idle players %d", level, idlePlayers.size());
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            evict(level >= TRIM_MEMORY_RUNNING_CRITICAL ? 0 : idlePlayers.size() / 2);
+        }
+    }
+}
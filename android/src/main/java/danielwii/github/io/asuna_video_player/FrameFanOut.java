@@ -0,0 +1,359 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import timber.log.Timber;
+
+/**
+ * Draws every frame a decoder renders into {@link #inputSurface()} to any number of textures,
+ * so one player can be shown in several places. Runs its own GL thread, each output is an EGL
+ * window surface drawn at the buffer size of its texture, which follows the displayed size.
+ * <p>
+ * Outputs are added and removed synchronously, once {@link #removeOutput} returns the texture
+ * has no producer and can be cleared or connected to a decoder.
+ */
+final class FrameFanOut implements SurfaceTexture.OnFrameAvailableListener {
+    private static final String TAG = FrameFanOut.class.getSimpleName();
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n"
+                    + "attribute vec4 aPosition;\n"
+                    + "attribute vec4 aTexCoord;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "void main() {\n"
+                    + "    gl_Position = aPosition;\n"
+                    + "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n"
+                    + "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+                    + "precision mediump float;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "uniform samplerExternalOES sTexture;\n"
+                    + "void main() {\n"
+                    + "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+                    + "}\n";
+
+    // full viewport triangle strip of x, y, s, t.
+    private static final float[] QUAD = {
+            -1f, -1f, 0f, 0f,
+            1f, -1f, 1f, 0f,
+            -1f, 1f, 0f, 1f,
+            1f, 1f, 1f, 1f,
+    };
+
+    private static final int STRIDE_BYTES = 4 * 4;
+
+    private final HandlerThread thread;
+    private final Handler       handler;
+
+    // only accessed from the GL thread.
+    private final Map<VideoTexture, EGLSurface> outputs   = new LinkedHashMap<>();
+    private final float[]                       texMatrix = new float[16];
+    private       EGLDisplay                    display;
+    private       EGLConfig                     config;
+    private       EGLContext                    context;
+    private       EGLSurface                    pbuffer;
+    private       FloatBuffer                   quad;
+    private       int                           program;
+    private       int                           textureId;
+    private       int                           uTexMatrix;
+    private       int                           aPosition;
+    private       int                           aTexCoord;
+    private       SurfaceTexture                input;
+
+    private volatile Surface inputSurface;
+    private volatile int     videoWidth;
+    private volatile int     videoHeight;
+    private volatile long    framesIn;
+    private volatile long    framesOut;
+    private volatile long    failedDraws;
+
+    /**
+     * Must not be called on the main thread, waits for the GL setup.
+     */
+    FrameFanOut() {
+        thread = new HandlerThread("asuna-fanout");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        try {
+            runAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    setUp();
+                }
+            });
+        } catch (RuntimeException e) {
+            thread.quit();
+            throw e;
+        }
+    }
+
+    /**
+     * The surface the decoder renders into.
+     */
+    Surface inputSurface() {
+        return inputSurface;
+    }
+
+    /**
+     * Sizes the buffers of all outputs, as the decoder does for a texture it renders into.
+     */
+    void setVideoSize(final int width, final int height) {
+        videoWidth = width;
+        videoHeight = height;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (VideoTexture texture : outputs.keySet()) {
+                    texture.setVideoSize(width, height);
+                }
+            }
+        });
+    }
+
+    void addOutput(final VideoTexture texture) {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (outputs.containsKey(texture)) {
+                    return;
+                }
+                if (videoWidth > 0 && videoHeight > 0) {
+                    texture.setVideoSize(videoWidth, videoHeight);
+                }
+                EGLSurface surface = EGL14.eglCreateWindowSurface(
+                        display, config, texture.surface(), new int[]{EGL14.EGL_NONE}, 0);
+                if (surface == null || surface == EGL14.EGL_NO_SURFACE) {
+                    Timber.tag(TAG).w("can't draw into texture %d: 0x%x", texture.id(), EGL14.eglGetError());
+                    return;
+                }
+                outputs.put(texture, surface);
+                texture.setAttached(true);
+            }
+        });
+    }
+
+    void removeOutput(final VideoTexture texture) {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                EGLSurface surface = outputs.remove(texture);
+                if (surface != null) {
+                    destroy(surface);
+                    texture.setAttached(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the GL resources, the decoder must no longer render into the input surface.
+     */
+    void release() {
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                tearDown();
+            }
+        });
+        thread.quit();
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("framesIn", framesIn);
+        stats.put("framesOut", framesOut);
+        stats.put("failedDraws", failedDraws);
+        return stats;
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        // on the GL thread, the input was created there.
+        if (input == null) {
+            return;
+        }
+        input.updateTexImage();
+        input.getTransformMatrix(texMatrix);
+        framesIn++;
+        for (Map.Entry<VideoTexture, EGLSurface> output : outputs.entrySet()) {
+            draw(output.getValue());
+        }
+        EGL14.eglMakeCurrent(display, pbuffer, pbuffer, context);
+    }
+
+    private void draw(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+            failedDraws++;
+            return;
+        }
+        int[] size = new int[2];
+        EGL14.eglQuerySurface(display, surface, EGL14.EGL_WIDTH, size, 0);
+        EGL14.eglQuerySurface(display, surface, EGL14.EGL_HEIGHT, size, 1);
+        GLES20.glViewport(0, 0, size[0], size[1]);
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(uTexMatrix, 1, false, texMatrix, 0);
+        quad.position(0);
+        GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_FLOAT, false, STRIDE_BYTES, quad);
+        quad.position(2);
+        GLES20.glVertexAttribPointer(aTexCoord, 2, GLES20.GL_FLOAT, false, STRIDE_BYTES, quad);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        if (EGL14.eglSwapBuffers(display, surface)) {
+            framesOut++;
+        } else {
+            // e.g. the texture was unregistered before the output was removed.
+            failedDraws++;
+        }
+    }
+
+    private void setUp() {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+            throw new IllegalStateException("eglInitialize failed: " + EGL14.eglGetError());
+        }
+        int[] attributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_NONE,
+        };
+        EGLConfig[] configs    = new EGLConfig[1];
+        int[]       numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] == 0) {
+            throw new IllegalStateException("no EGL config: " + EGL14.eglGetError());
+        }
+        config = configs[0];
+        context = EGL14.eglCreateContext(
+                display, config, EGL14.EGL_NO_CONTEXT, new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        // outputs come and go, the context stays current on this.
+        pbuffer = EGL14.eglCreatePbufferSurface(
+                display, config, new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+        EGL14.eglMakeCurrent(display, pbuffer, pbuffer, context);
+
+        program = createProgram();
+        uTexMatrix = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        aPosition = GLES20.glGetAttribLocation(program, "aPosition");
+        aTexCoord = GLES20.glGetAttribLocation(program, "aTexCoord");
+        GLES20.glEnableVertexAttribArray(aPosition);
+        GLES20.glEnableVertexAttribArray(aTexCoord);
+        quad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD);
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        input = new SurfaceTexture(textureId);
+        // called on this thread, as it has a looper.
+        input.setOnFrameAvailableListener(this);
+        inputSurface = new Surface(input);
+    }
+
+    private void tearDown() {
+        for (Map.Entry<VideoTexture, EGLSurface> output : outputs.entrySet()) {
+            destroy(output.getValue());
+            output.getKey().setAttached(false);
+        }
+        outputs.clear();
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+        if (input != null) {
+            input.release();
+            input = null;
+        }
+        GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+        GLES20.glDeleteProgram(program);
+        EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(display, pbuffer);
+        EGL14.eglDestroyContext(display, context);
+        EGL14.eglReleaseThread();
+    }
+
+    private void destroy(EGLSurface surface) {
+        // a surface is only released once it is no longer current.
+        EGL14.eglMakeCurrent(display, pbuffer, pbuffer, context);
+        EGL14.eglDestroySurface(display, surface);
+    }
+
+    private static int createProgram() {
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER));
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER));
+        GLES20.glLinkProgram(program);
+        int[] linked = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linked, 0);
+        if (linked[0] != GLES20.GL_TRUE) {
+            throw new IllegalStateException("can't link program: " + GLES20.glGetProgramInfoLog(program));
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            throw new IllegalStateException("can't compile shader: " + GLES20.glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+
+    private void runAndWait(final Runnable task) {
+        final CountDownLatch     done  = new CountDownLatch(1);
+        final RuntimeException[] error = new RuntimeException[1];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    error[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+}
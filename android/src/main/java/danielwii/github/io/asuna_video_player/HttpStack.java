@@ -0,0 +1,202 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Process wide HTTP client of all media, manifest and download requests. The single OkHttp
+ * client keeps connections alive between segment requests, multiplexes them over HTTP/2 where
+ * the server speaks it, and resolves each host at most once per {@link #DNS_TTL_MS}.
+ * <p>
+ * Timeouts, retries and the user agent are {@link #configure configured} by configureHttp and apply to
+ * sources built afterwards, headers are set per player by create.
+ * <p>
+ * The caches and the download store take the stack they build their factories from, so tests can
+ * hand them one resolving to a local server.
+ */
+final class HttpStack {
+
+    static final String DEFAULT_USER_AGENT         = "ExoPlayer";
+    static final int    DEFAULT_CONNECT_TIMEOUT_MS = 8000;
+    static final int    DEFAULT_READ_TIMEOUT_MS    = 8000;
+    static final int    DEFAULT_RETRIES            = 2;
+
+    private static final long DNS_TTL_MS           = 60 * 1000;
+    private static final long RETRY_BACKOFF_MS     = 100;
+    private static final int  MAX_IDLE_CONNECTIONS = 8;
+    private static final int  KEEP_ALIVE_MINUTES   = 5;
+
+    private static HttpStack instance;
+
+    private volatile OkHttpClient     client;
+    private volatile String           userAgent = DEFAULT_USER_AGENT;
+    // guarded by this, replaced by configure.
+    private          RetryInterceptor retryInterceptor;
+
+    private final AtomicLong dnsHits   = new AtomicLong();
+    private final AtomicLong dnsMisses = new AtomicLong();
+    private final AtomicLong retries   = new AtomicLong();
+
+    private HttpStack() {
+        this(Dns.SYSTEM);
+    }
+
+    /**
+     * @param dns resolves the hosts missing in the dns cache, e.g. every host to a local mock
+     *            server.
+     */
+    HttpStack(Dns dns) {
+        this.retryInterceptor = new RetryInterceptor(DEFAULT_RETRIES);
+        this.client = new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dns(new CachingDns(dns))
+                .connectTimeout(DEFAULT_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(DEFAULT_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .addInterceptor(retryInterceptor)
+                .build();
+    }
+
+    static synchronized HttpStack get() {
+        if (instance == null) {
+            instance = new HttpStack();
+        }
+        return instance;
+    }
+
+    synchronized void configure(int connectTimeoutMs, int readTimeoutMs, int maxRetries, String userAgent) {
+        // derived clients share the connection pool, dispatcher and dns cache.
+        OkHttpClient.Builder builder = client.newBuilder()
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS);
+        // only the retry interceptor is replaced, in its place.
+        List<Interceptor> interceptors = builder.interceptors();
+        RetryInterceptor  retry        = new RetryInterceptor(maxRetries);
+        interceptors.set(interceptors.indexOf(retryInterceptor), retry);
+        this.retryInterceptor = retry;
+        this.client = builder.build();
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * @param headers sent with every request of the factory, may be null.
+     */
+    HttpDataSource.Factory newFactory(Map<String, String> headers, TransferListener listener) {
+        OkHttpDataSourceFactory factory = new OkHttpDataSourceFactory(client, userAgent, listener);
+        if (headers != null) {
+            factory.getDefaultRequestProperties().set(headers);
+        }
+        return factory;
+    }
+
+    /**
+     * For engines with their own http stack, which still send the configured user agent.
+     */
+    String userAgent() {
+        return userAgent;
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("connections", client.connectionPool().connectionCount());
+        stats.put("idleConnections", client.connectionPool().idleConnectionCount());
+        stats.put("dnsHits", dnsHits.get());
+        stats.put("dnsMisses", dnsMisses.get());
+        stats.put("retries", retries.get());
+        return stats;
+    }
+
+    /**
+     * Retries GET requests that failed with an I/O error, e.g. a reset keep-alive connection,
+     * before the loader sees the error. Waits a little longer before each retry, the loader
+     * interrupts the wait when it cancels the load.
+     */
+    private final class RetryInterceptor implements Interceptor {
+        private final int maxRetries;
+
+        RetryInterceptor(int maxRetries) {
+            this.maxRetries = Math.max(0, maxRetries);
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return chain.proceed(request);
+                } catch (IOException e) {
+                    if (attempt >= maxRetries || !"GET".equals(request.method()) || chain.call().isCanceled()) {
+                        throw e;
+                    }
+                    retries.incrementAndGet();
+                    backOff(attempt);
+                }
+            }
+        }
+
+        private void backOff(int attempt) throws InterruptedIOException {
+            try {
+                Thread.sleep(RETRY_BACKOFF_MS * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("canceled while backing off");
+            }
+        }
+    }
+
+    private final class CachingDns implements Dns {
+        private final Dns                       delegate;
+        private final Map<String, CachedLookup> lookups = new ConcurrentHashMap<>();
+
+        CachingDns(Dns delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            CachedLookup cached = lookups.get(hostname);
+            long         now    = SystemClock.elapsedRealtime();
+            if (cached != null && cached.expiresAtMs > now) {
+                dnsHits.incrementAndGet();
+                return cached.addresses;
+            }
+            dnsMisses.incrementAndGet();
+            List<InetAddress> addresses = delegate.lookup(hostname);
+            lookups.put(hostname, new CachedLookup(addresses, now + DNS_TTL_MS));
+            return addresses;
+        }
+    }
+
+    private static final class CachedLookup {
+        final List<InetAddress> addresses;
+        final long              expiresAtMs;
+
+        CachedLookup(List<InetAddress> addresses, long expiresAtMs) {
+            this.addresses = addresses;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+}
@@ -1,6 +1,73 @@
 package danielwii.github.io.asuna_video_player;
 
+import java.util.Map;
+
 public interface IAsunaVideoPlayer {
+
+    /**
+     * Where a seek lands, the sync modes snap to a keyframe and skip decoding up to the target.
+     */
+    enum SeekMode {
+        EXACT("exact"),
+        CLOSEST_SYNC("closestSync"),
+        PREVIOUS_SYNC("previousSync"),
+        NEXT_SYNC("nextSync"),
+        ;
+
+        private final String name;
+
+        SeekMode(String name) {
+            this.name = name;
+        }
+
+        static SeekMode of(String name) {
+            for (SeekMode mode : values()) {
+                if (mode.name.equals(name)) return mode;
+            }
+            return EXACT;
+        }
+    }
+
+    /**
+     * Lifecycle of a player, changes are sent as "stateChanged" events by a {@link PlayerStateMachine}.
+     */
+    enum State {
+        IDLE("idle"),
+        PREPARING("preparing"),
+        READY("ready"),
+        PLAYING("playing"),
+        BUFFERING("buffering"),
+        PAUSED("paused"),
+        ENDED("ended"),
+        ERROR("error"),
+        RELEASED("released"),
+        ;
+
+        final String name;
+
+        State(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return false if the method call can't do anything in this state, e.g. after dispose.
+         */
+        boolean accepts(String method) {
+            switch (this) {
+                case RELEASED:
+                    return false;
+                case ERROR:
+                    // the player has to be created again.
+                    return !method.equals("play") && !method.equals("seekTo")
+                            && !method.equals("next") && !method.equals("previous");
+                default:
+                    return true;
+            }
+        }
+    }
+
+    State getState();
+
     void play();
 
     void pause();
@@ -9,10 +76,51 @@ public interface IAsunaVideoPlayer {
 
     void setVolume(double value);
 
-    void seekTo(int location);
+    /**
+     * Seeks requested while a seek is in flight are coalesced, only the latest one is executed.
+     * A "seekCompleted" event reports where the last seek landed.
+     */
+    void seekTo(int location, SeekMode mode);
 
     long getPosition();
 
+    /**
+     * Appends to the playlist of this player, or inserts at index if it is in range.
+     */
+    void addItem(String dataSource, int index);
+
+    void removeItem(int index);
+
+    void moveItem(int fromIndex, int toIndex);
+
+    void next();
+
+    void previous();
+
+    void setProgressInterval(int intervalMs);
+
+    /**
+     * Pixel size of the widget showing the video, 0 if unknown.
+     */
+    void setViewportSize(int width, int height);
+
+    void setTrackConstraints(int maxWidth, int maxHeight, int maxBitrate, boolean preferLowestWhenHidden);
+
+    void setVisibility(boolean visible);
+
+    /**
+     * Releases decoders and buffers but keeps the position, until {@link #resume()}.
+     */
+    void suspend();
+
+    void resume();
+
+    boolean isSuspended();
+
+    void setStatsInterval(int intervalMs);
+
+    Map<String, Object> getStats();
+
     void dispose();
 
     void sendBufferingUpdate();
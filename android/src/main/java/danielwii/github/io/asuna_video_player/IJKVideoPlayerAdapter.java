@@ -0,0 +1,635 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+import tv.danmaku.ijk.media.player.IMediaPlayer;
+import tv.danmaku.ijk.media.player.IjkMediaPlayer;
+
+/**
+ * Plays through ijkplayer, which decodes in software with ffmpeg. Sends the same events as
+ * {@link EXOVideoPlayerAdapter}, playback states are the {@link Player} ones.
+ * <p>
+ * Progressive sources and assets are read through {@link IjkDataSource}, HLS is fetched by
+ * ffmpeg itself. DASH and SmoothStreaming are not supported. ijkplayer has no playlist, every
+ * item gets a new native player, and no track selection, track constraints are ignored.
+ * <p>
+ * Only the armeabi-v7a and arm64-v8a natives are bundled, on other ABIs, e.g. x86 emulators,
+ * {@link #isAvailable()} is false and players fall back to exo.
+ */
+public class IJKVideoPlayerAdapter extends AbstractAsunaVideoPlayer {
+    private static final String TAG = IJKVideoPlayerAdapter.class.getSimpleName();
+
+    // null until the natives were loaded once.
+    private static volatile Boolean available;
+
+    private final Context                       context;
+    private final MediaCache                    mediaCache;
+    private final DownloadStore                 downloads;
+    private final ManifestCache                 manifestCache;
+    // sent with every request of every playlist item.
+    private final Map<String, String>           headers;
+    private final BufferingProfile              bufferingProfile;
+    private final QueuingEventSink              eventSink;
+    private final PlaybackMetrics               metrics;
+    private final PlayerStateMachine            stateMachine;
+    private final Listener                      listener      = new Listener();
+    private final List<String>                  items         = new ArrayList<>();
+    private final VideoTexture                  texture;
+    private ProgressTicker                      progressTicker;
+    private IjkMediaPlayer                      ijkPlayer;
+    private int                                 currentItem   = 0;
+    private int                                 state         = Player.STATE_IDLE;
+    private boolean                             isPrepared    = false;
+    private boolean                             isSuspended   = false;
+    private boolean                             isInitialized = false;
+    private boolean                             playWhenReady = false;
+    private boolean                             looping       = false;
+    private boolean                             visible       = true;
+    private float                               volume        = 1;
+    private int                                 bufferedPercentage;
+    private int                                 rotationDegrees;
+    // where the next prepared item starts, e.g. after resume or a seek before it was prepared.
+    private long                                startPositionMs = C.TIME_UNSET;
+    // dropped frames estimated from the drop rate, already added to the metrics.
+    private long                                reportedDroppedFrames;
+
+    private boolean isSeeking;
+    private long    pendingSeekMs = C.TIME_UNSET;
+    private long    seeksRequested;
+    private long    seeksCoalesced;
+    // starts of the traced seek and prepare, 0 when none is in flight or tracing is off.
+    private long    seekBeganAtNs;
+    private long    prepareBeganAtNs;
+
+    /**
+     * Must be called on the playback thread, ijkplayer posts its callbacks to its looper.
+     */
+    IJKVideoPlayerAdapter(
+            PlayerResources resources,
+            QueuingEventSink eventSink,
+            VideoTexture texture,
+            String dataSource,
+            Map<String, String> headers,
+            BufferingProfile bufferingProfile) {
+        this.context = resources.context;
+        this.mediaCache = resources.mediaCache;
+        this.downloads = resources.downloads;
+        this.manifestCache = resources.manifestCache;
+        this.headers = headers;
+        this.bufferingProfile = bufferingProfile;
+        this.eventSink = eventSink;
+        this.metrics = new PlaybackMetrics(eventSink, texture.id());
+        this.stateMachine = new PlayerStateMachine(eventSink);
+
+        items.add(checkSupported(dataSource));
+        this.texture = texture;
+        progressTicker = new ProgressTicker(new ProgressTicker.Source() {
+            @Override
+            public long getCurrentPosition() { return getPosition(); }
+
+            @Override
+            public long getBufferedPosition() { return getDuration() * bufferedPercentage / 100; }
+
+            @Override
+            public int getPlaybackState() { return state; }
+
+            @Override
+            public boolean getPlayWhenReady() { return playWhenReady; }
+        }, eventSink);
+        try {
+            prepare(0);
+        } catch (RuntimeException e) {
+            // nobody can dispose a player that was never returned, the native one goes now.
+            releasePlayer();
+            throw e;
+        }
+    }
+
+    @Override
+    public State getState() {
+        return stateMachine.state();
+    }
+
+    @Override
+    public void play() {
+        playWhenReady = true;
+        if (isPrepared) {
+            ijkPlayer.start();
+        }
+        onStateChanged();
+    }
+
+    @Override
+    public void pause() {
+        playWhenReady = false;
+        if (isPrepared) {
+            ijkPlayer.pause();
+        }
+        onStateChanged();
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+        applyLooping();
+    }
+
+    @Override
+    public void setVolume(double value) {
+        volume = (float) Math.max(0.0, Math.min(1.0, value));
+        if (ijkPlayer != null) {
+            ijkPlayer.setVolume(volume, volume);
+        }
+    }
+
+    /**
+     * Accurate seek is enabled when the item is prepared, so every mode lands exactly.
+     */
+    @Override
+    public void seekTo(int location, SeekMode mode) {
+        seeksRequested++;
+        if (!isPrepared) {
+            startPositionMs = location;
+            return;
+        }
+        if (isSeeking) {
+            if (pendingSeekMs != C.TIME_UNSET) {
+                seeksCoalesced++;
+            }
+            pendingSeekMs = location;
+            return;
+        }
+        seek(location);
+    }
+
+    private void seek(long positionMs) {
+        if (!isSeeking) {
+            seekBeganAtNs = Tracing.begin();
+        }
+        isSeeking = true;
+        metrics.onSeekStarted();
+        if (state == Player.STATE_ENDED) {
+            setState(Player.STATE_BUFFERING);
+        }
+        ijkPlayer.seekTo(positionMs);
+    }
+
+    @Override
+    public long getPosition() {
+        if (!isPrepared) {
+            return startPositionMs != C.TIME_UNSET ? startPositionMs : 0;
+        }
+        return ijkPlayer.getCurrentPosition();
+    }
+
+    private long getDuration() {
+        return isPrepared ? ijkPlayer.getDuration() : 0;
+    }
+
+    @Override
+    public void setProgressInterval(int intervalMs) {
+        progressTicker.setInterval(intervalMs);
+    }
+
+    @Override
+    public void addItem(String dataSource, int index) {
+        checkSupported(dataSource);
+        if (index < 0 || index > items.size()) {
+            items.add(dataSource);
+        } else {
+            items.add(index, dataSource);
+            if (index <= currentItem) {
+                setCurrentItem(currentItem + 1, false);
+            }
+        }
+        applyLooping();
+    }
+
+    @Override
+    public void removeItem(int index) {
+        items.remove(index);
+        applyLooping();
+        if (index < currentItem) {
+            setCurrentItem(currentItem - 1, false);
+        } else if (index == currentItem) {
+            if (items.isEmpty()) {
+                releasePlayer();
+                setState(Player.STATE_IDLE);
+            } else {
+                // like ExoPlayer, moves on to the item after the removed one.
+                open(Math.min(index, items.size() - 1), false);
+            }
+        }
+    }
+
+    @Override
+    public void moveItem(int fromIndex, int toIndex) {
+        items.add(toIndex, items.remove(fromIndex));
+        if (fromIndex == currentItem) {
+            setCurrentItem(toIndex, false);
+        } else if (fromIndex < currentItem && toIndex >= currentItem) {
+            setCurrentItem(currentItem - 1, false);
+        } else if (fromIndex > currentItem && toIndex <= currentItem) {
+            setCurrentItem(currentItem + 1, false);
+        }
+    }
+
+    @Override
+    public void next() {
+        if (currentItem + 1 < items.size()) {
+            open(currentItem + 1, false);
+        }
+    }
+
+    @Override
+    public void previous() {
+        if (currentItem > 0) {
+            open(currentItem - 1, false);
+        }
+    }
+
+    @Override
+    public void setViewportSize(int width, int height) {
+        // ffmpeg picks the variant of HLS itself, only the texture buffer follows the viewport.
+        texture.setDisplaySize(width, height);
+    }
+
+    @Override
+    public void setTrackConstraints(int maxWidth, int maxHeight, int maxBitrate, boolean preferLowestWhenHidden) {
+    }
+
+    @Override
+    public void setVisibility(boolean visible) {
+        if (this.visible == visible) {
+            return;
+        }
+        this.visible = visible;
+        if (ijkPlayer != null) {
+            // frees the output buffers of the surface, audio keeps playing.
+            ijkPlayer.setSurface(visible ? texture.surface() : null);
+            texture.setAttached(visible);
+        }
+    }
+
+    @Override
+    public void suspend() {
+        if (isSuspended) {
+            return;
+        }
+        isSuspended = true;
+        // the native player holds the decoders and buffers, keep the position for resume.
+        startPositionMs = getPosition();
+        releasePlayer();
+        setState(Player.STATE_IDLE);
+    }
+
+    @Override
+    public void resume() {
+        if (!isSuspended) {
+            return;
+        }
+        isSuspended = false;
+        prepare(currentItem);
+    }
+
+    @Override
+    public boolean isSuspended() {
+        return isSuspended;
+    }
+
+    @Override
+    public void setStatsInterval(int intervalMs) {
+        metrics.setReportInterval(intervalMs);
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        updateDroppedFrames();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("playback", metrics.toMap());
+        stats.put("events", eventSink.stats());
+        Map<String, Object> seeks = new HashMap<>();
+        seeks.put("requested", seeksRequested);
+        seeks.put("coalesced", seeksCoalesced);
+        stats.put("seeks", seeks);
+        stats.put("state", stateMachine.state().name);
+        stats.put("stateTransitions", stateMachine.transitions());
+        return stats;
+    }
+
+    @Override
+    PlaybackMetrics metrics() {
+        updateDroppedFrames();
+        return metrics;
+    }
+
+    @Override
+    public void dispose() {
+        progressTicker.stop();
+        metrics.stop();
+        updateDroppedFrames();
+        stateMachine.release(getPosition());
+        releasePlayer();
+        // the texture itself is recycled by the plugin on the main thread.
+    }
+
+    @Override
+    public void sendBufferingUpdate() {
+        sendBufferedPercentage(eventSink, bufferedPercentage);
+    }
+
+    private void open(int index, boolean isTransition) {
+        startPositionMs = C.TIME_UNSET;
+        setCurrentItem(index, isTransition);
+        if (!isSuspended) {
+            prepare(index);
+        }
+    }
+
+    private void setCurrentItem(int index, boolean isTransition) {
+        if (index == currentItem) {
+            return;
+        }
+        Map<String, Object> event = new HashMap<>();
+        event.put("event", "itemChanged");
+        event.put("index", index);
+        event.put("previousIndex", currentItem);
+        event.put("transition", isTransition);
+        // unknown until the item is prepared, as ExoPlayer reports it before.
+        event.put("duration", C.TIME_UNSET);
+        currentItem = index;
+        eventSink.success(event);
+    }
+
+    /**
+     * Replaces the native player with one playing the item at index, or just releases it when
+     * the playlist has no such item, as ExoPlayer idles on an empty playlist.
+     */
+    private void prepare(int index) {
+        releasePlayer();
+        if (index >= items.size()) {
+            return;
+        }
+        String dataSource = items.get(index);
+        Uri    uri        = Uri.parse(dataSource);
+        int    type       = manifestCache.contentType(dataSource);
+
+        ijkPlayer = new IjkMediaPlayer();
+        // decodes in software, which is why this engine is picked for some formats at all.
+        ijkPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_PLAYER, "mediacodec", 0);
+        ijkPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_PLAYER, "start-on-prepared", 0);
+        ijkPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_PLAYER, "framedrop", 1);
+        ijkPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_PLAYER, "enable-accurate-seek", 1);
+        if (bufferingProfile.targetBufferBytes > 0) {
+            ijkPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_PLAYER, "max-buffer-size", bufferingProfile.targetBufferBytes);
+        }
+        ijkPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_FORMAT, "user_agent", mediaCache.httpStack().userAgent());
+        ijkPlayer.setOption(IjkMediaPlayer.OPT_CATEGORY_FORMAT, "reconnect", 1);
+        ijkPlayer.setOnPreparedListener(listener);
+        ijkPlayer.setOnCompletionListener(listener);
+        ijkPlayer.setOnBufferingUpdateListener(listener);
+        ijkPlayer.setOnSeekCompleteListener(listener);
+        ijkPlayer.setOnErrorListener(listener);
+        ijkPlayer.setOnInfoListener(listener);
+        ijkPlayer.setOnVideoSizeChangedListener(listener);
+        ijkPlayer.setSurface(visible ? texture.surface() : null);
+        texture.setAttached(visible);
+        ijkPlayer.setVolume(volume, volume);
+        applyLooping();
+
+        if (isFileOrAsset(uri)) {
+            ijkPlayer.setDataSource(new IjkDataSource(
+                    new DefaultDataSourceFactory(context, "ExoPlayer").createDataSource(), uri));
+        } else if (type == C.TYPE_OTHER) {
+            ijkPlayer.setDataSource(new IjkDataSource(
+                    downloads.wrap(mediaCache.wrap(mediaCache.newUpstreamFactory(headers))).createDataSource(), uri));
+        } else {
+            try {
+                ijkPlayer.setDataSource(dataSource, headers);
+            } catch (IOException e) {
+                throw new IllegalStateException("Invalid data source: " + dataSource, e);
+            }
+        }
+        if (Tracing.isEnabled()) {
+            Timber.tag(TAG).d("prepare item %d of type %d", index, type);
+        }
+        prepareBeganAtNs = Tracing.begin();
+        ijkPlayer.prepareAsync();
+        setState(Player.STATE_BUFFERING);
+    }
+
+    /**
+     * Loads the natives on the first call, false if they aren't bundled for this ABI.
+     */
+    static boolean isAvailable() {
+        if (available == null) {
+            synchronized (IJKVideoPlayerAdapter.class) {
+                if (available == null) {
+                    try {
+                        IjkMediaPlayer.loadLibrariesOnce(null);
+                        available = true;
+                    } catch (UnsatisfiedLinkError | SecurityException e) {
+                        Timber.tag(TAG).w("ijk natives can't be loaded, ijk players fall back to exo: %s", e);
+                        available = false;
+                    }
+                }
+            }
+        }
+        return available;
+    }
+
+    static boolean isSupported(String dataSource) {
+        int type = Util.inferContentType(Uri.parse(dataSource).getLastPathSegment());
+        return type != C.TYPE_DASH && type != C.TYPE_SS;
+    }
+
+    private static String checkSupported(String dataSource) {
+        if (!isSupported(dataSource)) {
+            throw new IllegalArgumentException("Unsupported source for ijk: " + dataSource);
+        }
+        return dataSource;
+    }
+
+    private void releasePlayer() {
+        isPrepared = false;
+        isSeeking = false;
+        pendingSeekMs = C.TIME_UNSET;
+        bufferedPercentage = 0;
+        if (ijkPlayer != null) {
+            ijkPlayer.resetListeners();
+            ijkPlayer.release();
+            ijkPlayer = null;
+            texture.setAttached(false);
+        }
+    }
+
+    private void applyLooping() {
+        if (ijkPlayer != null) {
+            // playlists loop from the completion listener.
+            ijkPlayer.setLooping(looping && items.size() == 1);
+        }
+    }
+
+    private void setState(int state) {
+        if (this.state != state) {
+            this.state = state;
+            onStateChanged();
+        }
+    }
+
+    private void onStateChanged() {
+        metrics.onStateChanged(SystemClock.elapsedRealtime(), playWhenReady, state);
+        stateMachine.update(playWhenReady, state, getPosition());
+        progressTicker.update();
+    }
+
+    /**
+     * ijkplayer only reports the share of dropped frames, the count is estimated from the
+     * decoded frame rate and the time spent playing.
+     */
+    private void updateDroppedFrames() {
+        if (!isPrepared) {
+            return;
+        }
+        long estimated = (long) (ijkPlayer.getDropFrameRate()
+                * ijkPlayer.getVideoDecodeFramesPerSecond() * metrics.playingMs() / 1000);
+        if (estimated > reportedDroppedFrames) {
+            metrics.onDroppedFrames((int) (estimated - reportedDroppedFrames));
+            reportedDroppedFrames = estimated;
+        }
+    }
+
+    private void sendInitialized() {
+        eventSink.success(initializedEvent(
+                ijkPlayer.getDuration(),
+                ijkPlayer.getVideoWidth(),
+                ijkPlayer.getVideoHeight(),
+                rotationDegrees,
+                bufferingProfile));
+    }
+
+    private final class Listener implements
+            IMediaPlayer.OnPreparedListener,
+            IMediaPlayer.OnCompletionListener,
+            IMediaPlayer.OnBufferingUpdateListener,
+            IMediaPlayer.OnSeekCompleteListener,
+            IMediaPlayer.OnVideoSizeChangedListener,
+            IMediaPlayer.OnErrorListener,
+            IMediaPlayer.OnInfoListener {
+
+        @Override
+        public void onPrepared(IMediaPlayer mp) {
+            isPrepared = true;
+            Tracing.end(texture.id(), "prepare", prepareBeganAtNs);
+            if (startPositionMs != C.TIME_UNSET) {
+                long positionMs = startPositionMs;
+                startPositionMs = C.TIME_UNSET;
+                seek(positionMs);
+            }
+            if (playWhenReady) {
+                ijkPlayer.start();
+            }
+            setState(Player.STATE_READY);
+            if (!isInitialized) {
+                isInitialized = true;
+                metrics.onInitialized();
+                sendInitialized();
+            }
+        }
+
+        @Override
+        public void onCompletion(IMediaPlayer mp) {
+            if (currentItem + 1 < items.size()) {
+                open(currentItem + 1, true);
+            } else if (looping && items.size() > 1) {
+                open(0, true);
+            } else {
+                setState(Player.STATE_ENDED);
+                Map<String, Object> event = new HashMap<>();
+                event.put("event", "completed");
+                eventSink.success(event);
+            }
+        }
+
+        @Override
+        public void onBufferingUpdate(IMediaPlayer mp, int percent) {
+            bufferedPercentage = percent;
+        }
+
+        @Override
+        public void onSeekComplete(IMediaPlayer mp) {
+            metrics.onSeekProcessed();
+            if (!isSeeking) {
+                return;
+            }
+            if (pendingSeekMs != C.TIME_UNSET) {
+                long positionMs = pendingSeekMs;
+                pendingSeekMs = C.TIME_UNSET;
+                seek(positionMs);
+                return;
+            }
+            isSeeking = false;
+            Tracing.end(texture.id(), "seek", seekBeganAtNs);
+            if (state == Player.STATE_BUFFERING) {
+                setState(Player.STATE_READY);
+            }
+            Map<String, Object> event = new HashMap<>();
+            event.put("event", "seekCompleted");
+            event.put("position", ijkPlayer.getCurrentPosition());
+            event.put("timestamp", System.currentTimeMillis());
+            eventSink.success(event);
+        }
+
+        @Override
+        public void onVideoSizeChanged(IMediaPlayer mp, int width, int height, int sarNum, int sarDen) {
+            texture.setVideoSize(width, height);
+        }
+
+        @Override
+        public boolean onError(IMediaPlayer mp, int what, int extra) {
+            metrics.onError();
+            isSeeking = false;
+            pendingSeekMs = C.TIME_UNSET;
+            stateMachine.error(getPosition());
+            setState(Player.STATE_IDLE);
+            eventSink.error("VideoError", "Video player had error: " + what + ", " + extra, null);
+            return true;
+        }
+
+        @Override
+        public boolean onInfo(IMediaPlayer mp, int what, int extra) {
+            switch (what) {
+                case IMediaPlayer.MEDIA_INFO_BUFFERING_START:
+                    setState(Player.STATE_BUFFERING);
+                    sendBufferingUpdate();
+                    break;
+                case IMediaPlayer.MEDIA_INFO_BUFFERING_END:
+                    setState(Player.STATE_READY);
+                    break;
+                case IMediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START:
+                    metrics.onRenderedFirstFrame(SystemClock.elapsedRealtime());
+                    break;
+                case IMediaPlayer.MEDIA_INFO_VIDEO_ROTATION_CHANGED:
+                    rotationDegrees = extra;
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        }
+    }
+}
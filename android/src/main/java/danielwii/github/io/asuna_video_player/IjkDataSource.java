@@ -0,0 +1,83 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+
+import tv.danmaku.ijk.media.player.misc.IMediaDataSource;
+
+/**
+ * Feeds ijkplayer from an ExoPlayer {@link DataSource}, so progressive sources played by the
+ * ijk engine still go through the media cache, the shared http client and downloads.
+ * <p>
+ * ijkplayer calls it from its read thread only. Reads continue where the last one ended, any
+ * other position reopens the source there.
+ */
+final class IjkDataSource implements IMediaDataSource {
+
+    private final DataSource dataSource;
+    private final Uri        uri;
+
+    private boolean isOpen;
+    private long    readPosition;
+    private long    size = C.LENGTH_UNSET;
+
+    IjkDataSource(DataSource dataSource, Uri uri) {
+        this.dataSource = dataSource;
+        this.uri = uri;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        if (!isOpen || position != readPosition) {
+            open(position);
+        }
+        int read = dataSource.read(buffer, offset, size);
+        if (read == C.RESULT_END_OF_INPUT) {
+            return -1;
+        }
+        readPosition += read;
+        return read;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        if (size == C.LENGTH_UNSET && !isOpen) {
+            open(0);
+        }
+        // unknown for e.g. chunked responses, ijkplayer reads until the end of input then.
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isOpen) {
+            isOpen = false;
+            dataSource.close();
+        }
+    }
+
+    private void open(long position) throws IOException {
+        close();
+        long length;
+        try {
+            length = dataSource.open(new DataSpec(uri, position, C.LENGTH_UNSET, null));
+        } catch (IOException e) {
+            // a data source must be closed even when opening it failed.
+            dataSource.close();
+            throw e;
+        }
+        isOpen = true;
+        readPosition = position;
+        if (length != C.LENGTH_UNSET) {
+            size = position + length;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Replies to a method call from any thread, the reply is sent from the main thread as
+ * the platform channel requires.
+ */
+final class MainThreadResult implements MethodChannel.Result {
+
+    private final MethodChannel.Result result;
+    private final Handler              mainHandler = new Handler(Looper.getMainLooper());
+
+    MainThreadResult(MethodChannel.Result result) {
+        this.result = result;
+    }
+
+    @Override
+    public void success(final Object value) {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                result.success(value);
+            }
+        });
+    }
+
+    @Override
+    public void error(final String errorCode, final String errorMessage, final Object errorDetails) {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                result.error(errorCode, errorMessage, errorDetails);
+            }
+        });
+    }
+
+    @Override
+    public void notImplemented() {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                result.notImplemented();
+            }
+        });
+    }
+
+    private void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mainHandler.post(runnable);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * In-memory LRU of HLS, DASH and SmoothStreaming manifests and of inferred content types,
+ * keyed by uri and shared by all players, so opening a video again skips the manifest fetch.
+ * <p>
+ * Manifests of live streams expire after {@link #LIVE_TTL_MS}, their playlists keep moving,
+ * others after {@link #VOD_TTL_MS}. Readers of a manifest which is being fetched wait for that
+ * fetch instead of starting their own.
+ * <p>
+ * The raw bytes are cached rather than parsed manifests. Parsing is cheap next to the fetch,
+ * and HlsMediaSource can't be created from a parsed playlist.
+ */
+final class ManifestCache {
+    private static final String TAG = ManifestCache.class.getSimpleName();
+
+    private static final long LIVE_TTL_MS         = 1000;
+    private static final long VOD_TTL_MS          = 10 * 60 * 1000;
+    private static final int  MAX_ENTRIES         = 32;
+    private static final int  MAX_CONTENT_TYPES   = 256;
+    private static final int  MAX_MANIFEST_BYTES  = 1024 * 1024;
+    // longer than any sane manifest fetch, a stuck one must not block the others forever.
+    private static final long IN_FLIGHT_TIMEOUT_MS = 10 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, Entry>          entries      = lruMap(MAX_ENTRIES);
+    private final Map<String, Integer>        contentTypes = lruMap(MAX_CONTENT_TYPES);
+    private final Map<String, CountDownLatch> inFlight     = new HashMap<>();
+
+    private final AtomicLong hits            = new AtomicLong();
+    private final AtomicLong misses          = new AtomicLong();
+    private final AtomicLong expired         = new AtomicLong();
+    private final AtomicLong sharedFetches   = new AtomicLong();
+    private final AtomicLong contentTypeHits = new AtomicLong();
+
+    private static final class Entry {
+        final Uri    uri;
+        final byte[] data;
+        final long   expiresAtMs;
+
+        Entry(Uri uri, byte[] data, long expiresAtMs) {
+            this.uri = uri;
+            this.data = data;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private static <V> Map<String, V> lruMap(final int maxSize) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * {@link Util#inferContentType(String)} of the last path segment.
+     */
+    int contentType(String dataSource) {
+        synchronized (contentTypes) {
+            Integer type = contentTypes.get(dataSource);
+            if (type != null) {
+                contentTypeHits.incrementAndGet();
+                return type;
+            }
+        }
+        int type = Util.inferContentType(Uri.parse(dataSource).getLastPathSegment());
+        synchronized (contentTypes) {
+            contentTypes.put(dataSource, type);
+        }
+        return type;
+    }
+
+    /**
+     * Wraps the factory manifests are loaded with, media segments must not go through it.
+     */
+    DataSource.Factory wrap(final DataSource.Factory upstreamFactory) {
+        return new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new CachingDataSource(upstreamFactory.createDataSource());
+            }
+        };
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("expired", expired.get());
+        stats.put("sharedFetches", sharedFetches.get());
+        stats.put("contentTypeHits", contentTypeHits.get());
+        synchronized (entries) {
+            stats.put("entries", entries.size());
+        }
+        return stats;
+    }
+
+    private Entry get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAtMs <= SystemClock.elapsedRealtime()) {
+                expired.incrementAndGet();
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * @return the fetch to wait for, or null if the caller now owns the fetch of key.
+     */
+    private CountDownLatch joinOrStartFetch(String key) {
+        synchronized (inFlight) {
+            CountDownLatch fetch = inFlight.get(key);
+            if (fetch == null) {
+                inFlight.put(key, new CountDownLatch(1));
+            }
+            return fetch;
+        }
+    }
+
+    private void finishFetch(String key, Uri uri, byte[] data) {
+        if (data != null) {
+            long ttlMs = isLive(data) ? LIVE_TTL_MS : VOD_TTL_MS;
+            synchronized (entries) {
+                entries.put(key, new Entry(uri, data, SystemClock.elapsedRealtime() + ttlMs));
+            }
+            Timber.tag(TAG).d("cached %s for %dms", key, ttlMs);
+        }
+        synchronized (inFlight) {
+            CountDownLatch fetch = inFlight.remove(key);
+            if (fetch != null) {
+                fetch.countDown();
+            }
+        }
+    }
+
+    /**
+     * HLS media playlists without an end, dynamic MPDs and live SmoothStreaming manifests.
+     * HLS master playlists look the same for live and VOD and don't change, they count as VOD.
+     */
+    private static boolean isLive(byte[] data) {
+        String manifest = new String(data, UTF_8);
+        if (manifest.startsWith("#EXTM3U")) {
+            return manifest.contains("#EXTINF") && !manifest.contains("#EXT-X-ENDLIST");
+        }
+        return manifest.contains("type=\"dynamic\"") || manifest.contains("IsLive=\"TRUE\"");
+    }
+
+    /**
+     * Serves full reads of cached manifests from memory, and records what it reads from upstream.
+     * Range reads go straight upstream.
+     */
+    private final class CachingDataSource implements DataSource {
+        private final DataSource upstream;
+
+        private Entry                 cached;
+        private int                   cachedPosition;
+        private String                fetchKey;
+        private ByteArrayOutputStream fetched;
+        private boolean               ended;
+        private Uri                   uri;
+
+        CachingDataSource(DataSource upstream) {
+            this.upstream = upstream;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            upstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            if (dataSpec.position != 0 || dataSpec.length != C.LENGTH_UNSET) {
+                uri = dataSpec.uri;
+                return upstream.open(dataSpec);
+            }
+            String key = dataSpec.uri.toString();
+            cached = get(key);
+            if (cached == null) {
+                CountDownLatch fetch = joinOrStartFetch(key);
+                if (fetch == null) {
+                    fetchKey = key;
+                } else {
+                    sharedFetches.incrementAndGet();
+                    await(fetch);
+                    cached = get(key);
+                }
+            }
+            if (cached != null) {
+                hits.incrementAndGet();
+                cachedPosition = 0;
+                uri = cached.uri;
+                return cached.data.length;
+            }
+            misses.incrementAndGet();
+            ended = false;
+            fetched = fetchKey != null ? new ByteArrayOutputStream() : null;
+            long length;
+            try {
+                length = upstream.open(dataSpec);
+            } catch (IOException e) {
+                abandonFetch();
+                throw e;
+            }
+            // redirected manifests resolve their relative urls against where they came from.
+            uri = upstream.getUri();
+            return length;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (cached != null) {
+                int remaining = cached.data.length - cachedPosition;
+                if (remaining == 0) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+                int read = Math.min(remaining, readLength);
+                System.arraycopy(cached.data, cachedPosition, buffer, offset, read);
+                cachedPosition += read;
+                return read;
+            }
+            int read = upstream.read(buffer, offset, readLength);
+            if (read == C.RESULT_END_OF_INPUT) {
+                ended = true;
+            } else if (fetched != null) {
+                if (fetched.size() + read > MAX_MANIFEST_BYTES) {
+                    fetched = null;
+                } else {
+                    fetched.write(buffer, offset, read);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public Uri getUri() {
+            return uri;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (cached != null) {
+                cached = null;
+                return;
+            }
+            try {
+                upstream.close();
+            } finally {
+                if (fetchKey != null && ended && fetched != null) {
+                    finishFetch(fetchKey, uri, fetched.toByteArray());
+                    fetchKey = null;
+                }
+                // only complete reads are cached, the waiting readers fetch themselves otherwise.
+                abandonFetch();
+            }
+        }
+
+        private void abandonFetch() {
+            if (fetchKey != null) {
+                finishFetch(fetchKey, null, null);
+                fetchKey = null;
+                fetched = null;
+            }
+        }
+
+        private void await(CountDownLatch fetch) throws IOException {
+            try {
+                fetch.await(IN_FLIGHT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
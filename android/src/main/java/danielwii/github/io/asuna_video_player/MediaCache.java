@@ -0,0 +1,172 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.Context;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSinkFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Process wide on-disk media cache shared by all players, evicts least recently used spans
+ * once {@link #maxBytes} is exceeded.
+ * <p>
+ * SimpleCache locks its folder, so there must never be more than one instance per process.
+ */
+final class MediaCache implements CacheDataSource.EventListener, TransferListener {
+    private static final String TAG = MediaCache.class.getSimpleName();
+
+    static final long DEFAULT_MAX_BYTES = 200 * 1024 * 1024;
+
+    private static final String CACHE_DIR = "asuna_video_player";
+
+    // spans are written in fragments so eviction doesn't have to drop whole videos.
+    private static final long MAX_CACHE_FILE_BYTES = 2 * 1024 * 1024;
+
+    private static MediaCache instance;
+
+    private final SimpleCache cache;
+    private final HttpStack   httpStack;
+    private final long        maxBytes;
+
+    private final AtomicLong hits      = new AtomicLong();
+    private final AtomicLong hitBytes  = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+    private final AtomicLong missBytes = new AtomicLong();
+    private final AtomicLong ignored   = new AtomicLong();
+
+    private MediaCache(Context context, HttpStack httpStack, long maxBytes) {
+        this.httpStack = httpStack;
+        this.maxBytes = maxBytes;
+        this.cache = new SimpleCache(
+                new File(context.getCacheDir(), CACHE_DIR),
+                new LeastRecentlyUsedCacheEvictor(maxBytes));
+    }
+
+    /**
+     * Returns the shared cache, re-creating it when the size cap or the stack changed.
+     * Only re-size while no player is reading from the cache.
+     *
+     * @param httpStack the network factories that fill the cache are built from.
+     */
+    static synchronized MediaCache get(Context context, HttpStack httpStack, long maxBytes) {
+        if (instance != null && (instance.maxBytes != maxBytes || instance.httpStack != httpStack)) {
+            Timber.tag(TAG).d("resize media cache %d -> %d", instance.maxBytes, maxBytes);
+            instance.release();
+            instance = null;
+        }
+        if (instance == null) {
+            instance = new MediaCache(context.getApplicationContext(), httpStack, maxBytes);
+        }
+        return instance;
+    }
+
+    private void release() {
+        try {
+            cache.release();
+        } catch (Exception e) {
+            Timber.tag(TAG).w(e, "release media cache failed");
+        }
+    }
+
+    /**
+     * Wraps the upstream (network) factory so media reads go through the cache.
+     */
+    DataSource.Factory wrap(DataSource.Factory upstreamFactory) {
+        return new CacheDataSourceFactory(
+                cache,
+                upstreamFactory,
+                new FileDataSourceFactory(),
+                new CacheDataSinkFactory(cache, MAX_CACHE_FILE_BYTES),
+                CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR,
+                this);
+    }
+
+    HttpDataSource.Factory newUpstreamFactory() {
+        return newUpstreamFactory(null);
+    }
+
+    /**
+     * Builds the network factory that fills the cache, every network transfer is a cache miss.
+     *
+     * @param headers sent with every request, may be null.
+     */
+    HttpDataSource.Factory newUpstreamFactory(Map<String, String> headers) {
+        return httpStack.newFactory(headers, this);
+    }
+
+    HttpStack httpStack() {
+        return httpStack;
+    }
+
+    Cache cache() {
+        return cache;
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("hitBytes", hitBytes.get());
+        stats.put("misses", misses.get());
+        stats.put("missBytes", missBytes.get());
+        stats.put("ignored", ignored.get());
+        stats.put("cacheBytes", cache.getCacheSpace());
+        stats.put("maxCacheBytes", maxBytes);
+        return stats;
+    }
+
+    // --------------------------------------------------------------
+    // CacheDataSource.EventListener
+    // --------------------------------------------------------------
+
+    @Override
+    public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+        hits.incrementAndGet();
+        hitBytes.addAndGet(cachedBytesRead);
+    }
+
+    @Override
+    public void onCacheIgnored(int reason) {
+        ignored.incrementAndGet();
+    }
+
+    // --------------------------------------------------------------
+    // TransferListener
+    // --------------------------------------------------------------
+
+    @Override
+    public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    }
+
+    @Override
+    public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+        if (isNetwork) {
+            misses.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+        if (isNetwork) {
+            missBytes.addAndGet(bytesTransferred);
+        }
+    }
+
+    @Override
+    public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    }
+}
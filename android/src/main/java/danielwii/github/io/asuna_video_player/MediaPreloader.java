@@ -0,0 +1,157 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import com.google.android.exoplayer2.util.Util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * Warms the head of upcoming progressive sources into the {@link MediaCache}, without a decoder
+ * or surface. Loads run at {@link C#PRIORITY_DOWNLOAD} and block while any player is buffering.
+ */
+final class MediaPreloader {
+    private static final String TAG = MediaPreloader.class.getSimpleName();
+
+    static final long DEFAULT_BYTES = 1024 * 1024;
+
+    // used to turn a duration into bytes, the real bitrate is unknown before the source is parsed.
+    private static final long ASSUMED_BITRATE = 2_000_000;
+
+    private static final int MAX_CONCURRENT_PRELOADS = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final PriorityTaskManager  priorityTaskManager;
+    private final ExecutorService      executor;
+    private final Handler              handler;
+    // in-flight and queued preloads by uri, only accessed from the looper's thread.
+    private final Map<String, Preload> preloads = new HashMap<>();
+
+    private final class Preload implements Runnable {
+        final String        key;
+        final MediaCache    mediaCache;
+        final DataSpec      dataSpec;
+        final AtomicBoolean canceled = new AtomicBoolean();
+        Future<?>           future;
+
+        Preload(String key, MediaCache mediaCache, DataSpec dataSpec) {
+            this.key = key;
+            this.mediaCache = mediaCache;
+            this.dataSpec = dataSpec;
+        }
+
+        @Override
+        public void run() {
+            priorityTaskManager.add(C.PRIORITY_DOWNLOAD);
+            try {
+                CacheUtil.cache(
+                        dataSpec,
+                        mediaCache.cache(),
+                        new CacheDataSource(mediaCache.cache(), mediaCache.newUpstreamFactory().createDataSource()),
+                        new byte[BUFFER_SIZE],
+                        priorityTaskManager,
+                        C.PRIORITY_DOWNLOAD,
+                        null,
+                        canceled,
+                        false);
+                Timber.tag(TAG).d("preloaded %s", key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                Timber.tag(TAG).w("preload %s failed: %s", key, e);
+            } finally {
+                priorityTaskManager.remove(C.PRIORITY_DOWNLOAD);
+                done(this);
+            }
+        }
+    }
+
+    MediaPreloader(PriorityTaskManager priorityTaskManager, Looper looper) {
+        this.priorityTaskManager = priorityTaskManager;
+        this.handler = new Handler(looper);
+        this.executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_PRELOADS, MAX_CONCURRENT_PRELOADS,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "asuna-preloader");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param bytes      bytes to warm from the start of the source, or 0 to use durationMs.
+     * @param durationMs estimated playback duration to warm, used when bytes is 0.
+     * @return false if the source can't be preloaded, only progressive network sources can.
+     */
+    boolean preload(MediaCache mediaCache, String dataSource, long bytes, long durationMs) {
+        Uri uri = Uri.parse(dataSource);
+        String scheme = uri.getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            return false;
+        }
+        if (Util.inferContentType(uri.getLastPathSegment()) != C.TYPE_OTHER) {
+            return false;
+        }
+        if (preloads.containsKey(dataSource)) {
+            return true;
+        }
+        if (bytes <= 0) {
+            bytes = durationMs > 0 ? durationMs * ASSUMED_BITRATE / 8 / 1000 : DEFAULT_BYTES;
+        }
+        Preload preload = new Preload(dataSource, mediaCache, new DataSpec(uri, 0, bytes, null));
+        preloads.put(dataSource, preload);
+        preload.future = executor.submit(preload);
+        return true;
+    }
+
+    void cancel(String dataSource) {
+        Preload preload = preloads.remove(dataSource);
+        if (preload != null) {
+            preload.canceled.set(true);
+            preload.future.cancel(true);
+        }
+    }
+
+    void cancelAll() {
+        for (Preload preload : preloads.values()) {
+            preload.canceled.set(true);
+            preload.future.cancel(true);
+        }
+        preloads.clear();
+    }
+
+    private void done(final Preload preload) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (preloads.get(preload.key) == preload) {
+                    preloads.remove(preload.key);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,253 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Surface;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.analytics.AnalyticsListener;
+import com.google.android.exoplayer2.source.MediaSourceEventListener;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Quality-of-experience counters of one player: startup times, rebuffers, dropped frames,
+ * bandwidth and bitrate switches. Callbacks only update primitives, so it stays on in release.
+ * <p>
+ * Optionally reports itself as a "stats" event every {@link #setReportInterval(int) interval}.
+ * Players of other engines feed it through the plain on* methods instead of AnalyticsListener.
+ */
+final class PlaybackMetrics implements AnalyticsListener, Runnable {
+
+    private final long             createdAtMs = SystemClock.elapsedRealtime();
+    private final long             createdAtNs = Tracing.begin();
+    private final Handler          handler;
+    private final QueuingEventSink eventSink;
+    private final long             traceId;
+    private       int              reportIntervalMs;
+
+    private long initializedAtMs = C.TIME_UNSET;
+    private long firstFrameAtMs  = C.TIME_UNSET;
+
+    private boolean seeking;
+    private boolean wasReady;
+    private long    playingSinceMs = C.TIME_UNSET;
+    private long    playingMs;
+    private int     errorCount;
+    private long    rebufferStartMs = C.TIME_UNSET;
+    private int     rebufferCount;
+    private long    rebufferDurationMs;
+
+    private long droppedFrames;
+    private long bandwidthEstimate;
+    private int  videoBitrate = Format.NO_VALUE;
+    private int  bitrateSwitches;
+    private long videoDecoderInitMs = C.TIME_UNSET;
+    private long audioDecoderInitMs = C.TIME_UNSET;
+
+    /**
+     * @param traceId texture id the time to first frame is traced under.
+     */
+    PlaybackMetrics(QueuingEventSink eventSink, long traceId) {
+        this.handler = new Handler(Looper.myLooper());
+        this.eventSink = eventSink;
+        this.traceId = traceId;
+    }
+
+    /**
+     * @param reportIntervalMs interval of the "stats" event, 0 disables it.
+     */
+    void setReportInterval(int reportIntervalMs) {
+        this.reportIntervalMs = Math.max(0, reportIntervalMs);
+        handler.removeCallbacks(this);
+        if (this.reportIntervalMs > 0) {
+            handler.postDelayed(this, this.reportIntervalMs);
+        }
+    }
+
+    void stop() {
+        reportIntervalMs = 0;
+        handler.removeCallbacks(this);
+    }
+
+    void onInitialized() {
+        if (initializedAtMs == C.TIME_UNSET) {
+            initializedAtMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (reportIntervalMs == 0) {
+            return;
+        }
+        Map<String, Object> event = eventSink.obtain("stats");
+        fill(event);
+        eventSink.success(event);
+        handler.postDelayed(this, reportIntervalMs);
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> stats = new HashMap<>();
+        fill(stats);
+        return stats;
+    }
+
+    private void fill(Map<String, Object> stats) {
+        stats.put("timeToInitializedMs", elapsedSinceCreate(initializedAtMs));
+        stats.put("timeToFirstFrameMs", elapsedSinceCreate(firstFrameAtMs));
+        long rebufferingMs = rebufferStartMs != C.TIME_UNSET
+                ? SystemClock.elapsedRealtime() - rebufferStartMs : 0;
+        stats.put("rebufferCount", rebufferCount);
+        stats.put("rebufferDurationMs", rebufferDurationMs + rebufferingMs);
+        stats.put("droppedFrames", droppedFrames);
+        stats.put("playingMs", playingMs());
+        stats.put("errors", errorCount);
+        stats.put("bandwidthEstimate", bandwidthEstimate);
+        stats.put("videoBitrate", videoBitrate);
+        stats.put("bitrateSwitches", bitrateSwitches);
+        stats.put("videoDecoderInitMs", videoDecoderInitMs != C.TIME_UNSET ? videoDecoderInitMs : -1);
+        stats.put("audioDecoderInitMs", audioDecoderInitMs != C.TIME_UNSET ? audioDecoderInitMs : -1);
+    }
+
+    long timeToFirstFrameMs() {
+        return elapsedSinceCreate(firstFrameAtMs);
+    }
+
+    long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Time spent playing, without pauses and rebuffers.
+     */
+    long playingMs() {
+        return playingMs + (playingSinceMs != C.TIME_UNSET ? SystemClock.elapsedRealtime() - playingSinceMs : 0);
+    }
+
+    int errorCount() {
+        return errorCount;
+    }
+
+    void onStateChanged(long realtimeMs, boolean playWhenReady, int playbackState) {
+        if (playbackState == Player.STATE_BUFFERING && wasReady && !seeking) {
+            if (rebufferStartMs == C.TIME_UNSET) {
+                rebufferCount++;
+                rebufferStartMs = realtimeMs;
+            }
+        } else if (rebufferStartMs != C.TIME_UNSET) {
+            rebufferDurationMs += realtimeMs - rebufferStartMs;
+            rebufferStartMs = C.TIME_UNSET;
+        }
+        if (playbackState == Player.STATE_READY) {
+            wasReady = true;
+        } else if (playbackState == Player.STATE_IDLE) {
+            // stopped, e.g. suspended while hidden, buffering after the next prepare is a start.
+            wasReady = false;
+        }
+        boolean playing = playWhenReady && playbackState == Player.STATE_READY;
+        if (playing && playingSinceMs == C.TIME_UNSET) {
+            playingSinceMs = realtimeMs;
+        } else if (!playing && playingSinceMs != C.TIME_UNSET) {
+            playingMs += realtimeMs - playingSinceMs;
+            playingSinceMs = C.TIME_UNSET;
+        }
+    }
+
+    void onSeekStarted() {
+        seeking = true;
+    }
+
+    void onSeekProcessed() {
+        seeking = false;
+    }
+
+    void onRenderedFirstFrame(long realtimeMs) {
+        if (firstFrameAtMs == C.TIME_UNSET) {
+            firstFrameAtMs = realtimeMs;
+            Tracing.end(traceId, "firstFrame", createdAtNs);
+        }
+    }
+
+    void onDroppedFrames(int droppedFrames) {
+        this.droppedFrames += droppedFrames;
+    }
+
+    void onError() {
+        errorCount++;
+    }
+
+    private long elapsedSinceCreate(long atMs) {
+        return atMs != C.TIME_UNSET ? atMs - createdAtMs : -1;
+    }
+
+    // --------------------------------------------------------------
+    // AnalyticsListener
+    // --------------------------------------------------------------
+
+    @Override
+    public void onPlayerStateChanged(EventTime eventTime, boolean playWhenReady, int playbackState) {
+        onStateChanged(eventTime.realtimeMs, playWhenReady, playbackState);
+    }
+
+    @Override
+    public void onSeekStarted(EventTime eventTime) {
+        onSeekStarted();
+    }
+
+    @Override
+    public void onSeekProcessed(EventTime eventTime) {
+        onSeekProcessed();
+    }
+
+    @Override
+    public void onPlayerError(EventTime eventTime, ExoPlaybackException error) {
+        onError();
+    }
+
+    @Override
+    public void onRenderedFirstFrame(EventTime eventTime, Surface surface) {
+        onRenderedFirstFrame(eventTime.realtimeMs);
+    }
+
+    @Override
+    public void onDroppedVideoFrames(EventTime eventTime, int droppedFrames, long elapsedMs) {
+        onDroppedFrames(droppedFrames);
+    }
+
+    @Override
+    public void onBandwidthEstimate(
+            EventTime eventTime, int totalLoadTimeMs, long totalBytesLoaded, long bitrateEstimate) {
+        this.bandwidthEstimate = bitrateEstimate;
+    }
+
+    @Override
+    public void onDownstreamFormatChanged(
+            EventTime eventTime, MediaSourceEventListener.MediaLoadData mediaLoadData) {
+        if (mediaLoadData.trackFormat == null) {
+            return;
+        }
+        if (mediaLoadData.trackType == C.TRACK_TYPE_VIDEO || mediaLoadData.trackType == C.TRACK_TYPE_DEFAULT) {
+            int bitrate = mediaLoadData.trackFormat.bitrate;
+            if (videoBitrate != Format.NO_VALUE && bitrate != videoBitrate) {
+                bitrateSwitches++;
+            }
+            videoBitrate = bitrate;
+        }
+    }
+
+    @Override
+    public void onDecoderInitialized(
+            EventTime eventTime, int trackType, String decoderName, long initializationDurationMs) {
+        if (trackType == C.TRACK_TYPE_VIDEO) {
+            videoDecoderInitMs = initializationDurationMs;
+        } else if (trackType == C.TRACK_TYPE_AUDIO) {
+            audioDecoderInitMs = initializationDurationMs;
+        }
+    }
+}
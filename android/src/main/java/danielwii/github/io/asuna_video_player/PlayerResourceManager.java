@@ -0,0 +1,283 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Releases decoders and buffers of players that are off screen, while keeping their position.
+ * <p>
+ * A hidden player is suspended after {@link #setSuspendDelay(int) a delay}, under memory
+ * pressure right away, and whenever more than {@link #setMaxActivePlayers(int) max} players
+ * would hold decoders. Least recently visible players are suspended first, a suspended player
+ * resumes when it becomes visible or is played again. Visible players are never suspended,
+ * the user would be left with a frozen frame, so they may exceed max until they are hidden.
+ * <p>
+ * A player {@link #share shared} by several textures counts once, and is hidden only once all
+ * of its textures are.
+ * <p>
+ * Must be used from the thread of the looper it is created with, the playback thread.
+ */
+final class PlayerResourceManager implements ComponentCallbacks2 {
+    private static final String TAG = PlayerResourceManager.class.getSimpleName();
+
+    static final int DEFAULT_SUSPEND_DELAY_MS   = 5000;
+    static final int DEFAULT_MAX_ACTIVE_PLAYERS = 4;
+
+    private final class Entry implements Runnable {
+        final IAsunaVideoPlayer        player;
+        // the textures showing the player, and whether each of them is visible.
+        final LongSparseArray<Boolean> textures      = new LongSparseArray<>();
+        boolean                        visible       = true;
+        long                           lastVisibleMs = SystemClock.elapsedRealtime();
+
+        Entry(IAsunaVideoPlayer player) {
+            this.player = player;
+        }
+
+        /**
+         * The texture the entry is counted and logged by.
+         */
+        long textureId() {
+            return textures.keyAt(0);
+        }
+
+        boolean isCountedAt(int index) {
+            return entries.keyAt(index) == textureId();
+        }
+
+        @Override
+        public void run() {
+            suspend(this);
+        }
+    }
+
+    private final Context                context;
+    private final Handler                handler;
+    private final LongSparseArray<Entry> entries          = new LongSparseArray<>();
+    private       int                    suspendDelayMs   = DEFAULT_SUSPEND_DELAY_MS;
+    private       int                    maxActivePlayers = DEFAULT_MAX_ACTIVE_PLAYERS;
+
+    private long suspensions;
+
+    PlayerResourceManager(Context context, Looper looper) {
+        this.context = context.getApplicationContext();
+        this.handler = new Handler(looper);
+        this.context.registerComponentCallbacks(this);
+    }
+
+    void setSuspendDelay(int suspendDelayMs) {
+        this.suspendDelayMs = Math.max(0, suspendDelayMs);
+    }
+
+    void setMaxActivePlayers(int maxActivePlayers) {
+        this.maxActivePlayers = Math.max(1, maxActivePlayers);
+        enforceMaxActivePlayers(null);
+    }
+
+    void add(long textureId, IAsunaVideoPlayer player) {
+        Entry entry = new Entry(player);
+        entry.textures.put(textureId, true);
+        entries.put(textureId, entry);
+        enforceMaxActivePlayers(entry);
+    }
+
+    /**
+     * Shows the player added for sharedTextureId on textureId as well, visible at first.
+     */
+    void share(long textureId, long sharedTextureId) {
+        Entry entry = entries.get(sharedTextureId);
+        if (entry == null) {
+            throw new IllegalStateException("No player registered for texture " + sharedTextureId);
+        }
+        entry.textures.put(textureId, true);
+        entries.put(textureId, entry);
+        updateVisibility(entry);
+        enforceMaxActivePlayers(entry);
+    }
+
+    void remove(long textureId) {
+        Entry entry = entries.get(textureId);
+        if (entry == null) {
+            return;
+        }
+        entries.remove(textureId);
+        entry.textures.remove(textureId);
+        if (entry.textures.size() == 0) {
+            handler.removeCallbacks(entry);
+            return;
+        }
+        // the textures left may all be hidden.
+        updateVisibility(entry);
+    }
+
+    void clear() {
+        handler.removeCallbacksAndMessages(null);
+        entries.clear();
+    }
+
+    void dispose() {
+        clear();
+        context.unregisterComponentCallbacks(this);
+    }
+
+    void setVisible(long textureId, boolean visible) {
+        Entry entry = entries.get(textureId);
+        if (entry == null) {
+            return;
+        }
+        entry.textures.put(textureId, visible);
+        updateVisibility(entry);
+    }
+
+    private void updateVisibility(Entry entry) {
+        boolean visible = false;
+        for (int i = 0; i < entry.textures.size(); i++) {
+            visible |= entry.textures.valueAt(i);
+        }
+        if (entry.visible == visible) {
+            return;
+        }
+        entry.visible = visible;
+        entry.lastVisibleMs = SystemClock.elapsedRealtime();
+        handler.removeCallbacks(entry);
+        if (visible) {
+            activate(entry);
+        } else {
+            handler.postDelayed(entry, suspendDelayMs);
+            // visible players may have exceeded max, this one goes now rather than after the delay.
+            enforceMaxActivePlayers(null);
+        }
+    }
+
+    /**
+     * Resumes the player if it was suspended, called before it is used again.
+     */
+    void activate(long textureId) {
+        Entry entry = entries.get(textureId);
+        if (entry != null) {
+            activate(entry);
+        }
+    }
+
+    private void activate(Entry entry) {
+        if (!entry.player.isSuspended()) {
+            return;
+        }
+        Timber.tag(TAG).d("resume player %d", entry.textureId());
+        entry.player.resume();
+        enforceMaxActivePlayers(entry);
+    }
+
+    Map<String, Object> stats() {
+        int players = 0;
+        int active  = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.valueAt(i);
+            if (!entry.isCountedAt(i)) continue;
+            players++;
+            if (!entry.player.isSuspended()) active++;
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("players", players);
+        stats.put("active", active);
+        stats.put("maxActive", maxActivePlayers);
+        stats.put("suspensions", suspensions);
+        return stats;
+    }
+
+    private void suspend(Entry entry) {
+        handler.removeCallbacks(entry);
+        if (!entry.player.isSuspended()) {
+            Timber.tag(TAG).d("suspend player %d", entry.textureId());
+            entry.player.suspend();
+            suspensions++;
+        }
+    }
+
+    /**
+     * Suspends least recently visible hidden players until at most max players are active.
+     */
+    private void enforceMaxActivePlayers(Entry keep) {
+        while (true) {
+            int   active    = 0;
+            Entry candidate = null;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.valueAt(i);
+                if (!entry.isCountedAt(i) || entry.player.isSuspended()) continue;
+                active++;
+                if (entry != keep && !entry.visible
+                        && (candidate == null || entry.lastVisibleMs < candidate.lastVisibleMs)) {
+                    candidate = entry;
+                }
+            }
+            if (active <= maxActivePlayers || candidate == null) {
+                return;
+            }
+            suspend(candidate);
+        }
+    }
+
+    /**
+     * Suspends up to count hidden players, least recently visible first.
+     */
+    private void suspendHidden(int count) {
+        for (; count > 0; count--) {
+            Entry candidate = null;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.valueAt(i);
+                if (entry.visible || entry.player.isSuspended()) continue;
+                if (candidate == null || entry.lastVisibleMs < candidate.lastVisibleMs) {
+                    candidate = entry;
+                }
+            }
+            if (candidate == null) {
+                return;
+            }
+            suspend(candidate);
+        }
+    }
+
+    // --------------------------------------------------------------
+    // ComponentCallbacks2
+    // --------------------------------------------------------------
+
+    @Override
+    public void onTrimMemory(final int level) {
+        Timber.tag(TAG).d("onTrimMemory %d", level);
+        // delivered on the main thread, players are only touched from the playback thread.
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                    suspendHidden(Integer.MAX_VALUE);
+                } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+                    suspendHidden(1);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onLowMemory() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                suspendHidden(Integer.MAX_VALUE);
+            }
+        });
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -0,0 +1,36 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.Context;
+
+/**
+ * Resources shared by all players of one plugin instance.
+ */
+final class PlayerResources {
+    final Context        context;
+    final MediaCache     mediaCache;
+    final ExoPlayerPool  playerPool;
+    final DownloadStore  downloads;
+    final EngineSelector engines;
+    final TexturePool    texturePool;
+    final ManifestCache  manifestCache;
+    final ResumeStore    resumeStore;
+
+    PlayerResources(
+            Context context,
+            MediaCache mediaCache,
+            ExoPlayerPool playerPool,
+            DownloadStore downloads,
+            EngineSelector engines,
+            TexturePool texturePool,
+            ManifestCache manifestCache,
+            ResumeStore resumeStore) {
+        this.context = context;
+        this.mediaCache = mediaCache;
+        this.playerPool = playerPool;
+        this.downloads = downloads;
+        this.engines = engines;
+        this.texturePool = texturePool;
+        this.manifestCache = manifestCache;
+        this.resumeStore = resumeStore;
+    }
+}
@@ -0,0 +1,96 @@
+package danielwii.github.io.asuna_video_player;
+
+import com.google.android.exoplayer2.Player;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Derives the {@link IAsunaVideoPlayer.State} of a player from the {@link Player} playback state
+ * and play when ready of its engine. Sends a "stateChanged" event with the position and wall
+ * clock time of every real transition. The dart side interpolates the position from them,
+ * and needs no polling.
+ * <p>
+ * ERROR is only left by preparing again, RELEASED is final.
+ */
+final class PlayerStateMachine {
+
+    private final QueuingEventSink eventSink;
+
+    private volatile IAsunaVideoPlayer.State state = IAsunaVideoPlayer.State.IDLE;
+
+    private boolean hasBeenReady;
+    private boolean hasPlayed;
+    private int     transitions;
+
+    PlayerStateMachine(QueuingEventSink eventSink) {
+        this.eventSink = eventSink;
+    }
+
+    /**
+     * Readable from any thread.
+     */
+    IAsunaVideoPlayer.State state() {
+        return state;
+    }
+
+    void update(boolean playWhenReady, int playbackState, long positionMs) {
+        IAsunaVideoPlayer.State next;
+        switch (playbackState) {
+            case Player.STATE_BUFFERING:
+                next = hasBeenReady ? IAsunaVideoPlayer.State.BUFFERING : IAsunaVideoPlayer.State.PREPARING;
+                break;
+            case Player.STATE_READY:
+                hasBeenReady = true;
+                if (playWhenReady) {
+                    hasPlayed = true;
+                    next = IAsunaVideoPlayer.State.PLAYING;
+                } else {
+                    next = hasPlayed ? IAsunaVideoPlayer.State.PAUSED : IAsunaVideoPlayer.State.READY;
+                }
+                break;
+            case Player.STATE_ENDED:
+                next = IAsunaVideoPlayer.State.ENDED;
+                break;
+            default:
+                // stopped, e.g. suspended, the next prepare starts over.
+                hasBeenReady = false;
+                if (state == IAsunaVideoPlayer.State.ERROR) {
+                    return;
+                }
+                next = IAsunaVideoPlayer.State.IDLE;
+                break;
+        }
+        moveTo(next, positionMs);
+    }
+
+    void error(long positionMs) {
+        hasBeenReady = false;
+        moveTo(IAsunaVideoPlayer.State.ERROR, positionMs);
+    }
+
+    void release(long positionMs) {
+        moveTo(IAsunaVideoPlayer.State.RELEASED, positionMs);
+    }
+
+    int transitions() {
+        return transitions;
+    }
+
+    private void moveTo(IAsunaVideoPlayer.State next, long positionMs) {
+        if (next == state || state == IAsunaVideoPlayer.State.RELEASED) {
+            return;
+        }
+        IAsunaVideoPlayer.State previous = state;
+        state = next;
+        transitions++;
+        // not coalesced like the high frequency events, every transition is delivered.
+        Map<String, Object> event = new HashMap<>();
+        event.put("event", "stateChanged");
+        event.put("state", next.name);
+        event.put("previousState", previous.name);
+        event.put("position", positionMs);
+        event.put("timestamp", System.currentTimeMillis());
+        eventSink.success(event);
+    }
+}
@@ -0,0 +1,157 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer2.Player;
+
+import java.util.Map;
+
+/**
+ * Pushes position, buffered position and playback state as a single "progress" event,
+ * so the dart side no longer needs to poll "position" on a timer.
+ * <p>
+ * Ticks only while the player wants to play, and backs off while nothing changes.
+ */
+final class ProgressTicker implements Runnable {
+
+    /**
+     * What the ticker reads from a player of any engine, states are the {@link Player} ones.
+     */
+    interface Source {
+        long getCurrentPosition();
+
+        long getBufferedPosition();
+
+        int getPlaybackState();
+
+        boolean getPlayWhenReady();
+    }
+
+    private static final int MAX_BACKOFF_SHIFT = 3;
+
+    private final Handler          handler;
+    private final Source           player;
+    private final QueuingEventSink eventSink;
+
+    private int     intervalMs;
+    private int     backoffShift;
+    private boolean scheduled;
+
+    private long lastPosition = -1;
+    private long lastBuffered = -1;
+    private int  lastState    = -1;
+
+    ProgressTicker(final Player player, QueuingEventSink eventSink) {
+        this(new Source() {
+            @Override
+            public long getCurrentPosition() { return player.getCurrentPosition(); }
+
+            @Override
+            public long getBufferedPosition() { return player.getBufferedPosition(); }
+
+            @Override
+            public int getPlaybackState() { return player.getPlaybackState(); }
+
+            @Override
+            public boolean getPlayWhenReady() { return player.getPlayWhenReady(); }
+        }, eventSink);
+    }
+
+    ProgressTicker(Source player, QueuingEventSink eventSink) {
+        // must be created on the thread the player is accessed from.
+        this.handler = new Handler(Looper.myLooper());
+        this.player = player;
+        this.eventSink = eventSink;
+    }
+
+    /**
+     * @param intervalMs tick interval in milliseconds, 0 disables the ticker.
+     */
+    void setInterval(int intervalMs) {
+        this.intervalMs = Math.max(0, intervalMs);
+        update();
+    }
+
+    /**
+     * Called on player events, restarts ticking at the base rate or stops it when paused.
+     */
+    void update() {
+        backoffShift = 0;
+        handler.removeCallbacks(this);
+        scheduled = false;
+        if (intervalMs == 0) {
+            return;
+        }
+        // always emit once so the dart side sees the final state before ticking stops.
+        emit(true);
+        if (isActive()) {
+            schedule();
+        }
+    }
+
+    void stop() {
+        intervalMs = 0;
+        handler.removeCallbacks(this);
+        scheduled = false;
+    }
+
+    @Override
+    public void run() {
+        scheduled = false;
+        if (intervalMs == 0 || !isActive()) {
+            return;
+        }
+        if (emit(false)) {
+            backoffShift = 0;
+        } else if (backoffShift < MAX_BACKOFF_SHIFT) {
+            backoffShift++;
+        }
+        schedule();
+    }
+
+    private boolean isActive() {
+        int state = player.getPlaybackState();
+        return player.getPlayWhenReady() && state != Player.STATE_IDLE && state != Player.STATE_ENDED;
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(this, (long) intervalMs << backoffShift);
+        }
+    }
+
+    /**
+     * @return false if nothing changed since the last event and the event was skipped.
+     */
+    private boolean emit(boolean force) {
+        long position = player.getCurrentPosition();
+        long buffered = player.getBufferedPosition();
+        int  state    = player.getPlaybackState();
+        if (!force && position == lastPosition && buffered == lastBuffered && state == lastState) {
+            return false;
+        }
+        lastPosition = position;
+        lastBuffered = buffered;
+        lastState = state;
+
+        boolean playing = player.getPlayWhenReady() && state == Player.STATE_READY;
+        if (eventSink.isCompact()) {
+            QueuingEventSink.PackedEvent event = eventSink.obtainPacked(CompactEvents.PROGRESS, 5);
+            event.values[1] = position;
+            event.values[2] = buffered;
+            event.values[3] = state;
+            event.values[4] = playing ? CompactEvents.FLAG_PLAYING : 0;
+            eventSink.success(event);
+            return true;
+        }
+        Map<String, Object> event = eventSink.obtain("progress");
+        event.put("position", position);
+        event.put("buffered", buffered);
+        event.put("state", state);
+        event.put("playing", playing);
+        eventSink.success(event);
+        return true;
+    }
+}
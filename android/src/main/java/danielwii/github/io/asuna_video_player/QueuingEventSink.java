@@ -1,16 +1,43 @@
 package danielwii.github.io.asuna_video_player;
 
-import android.util.Log;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.flutter.plugin.common.EventChannel;
 
-final class QueuingEventSink implements EventChannel.EventSink {
+/**
+ * Buffers events until the dart side listens, and flushes them to the delegate in batches,
+ * once per frame or per {@link #setFlushInterval(int) interval}.
+ * <p>
+ * High frequency events should be built on a map from {@link #obtain(String)}, the map is
+ * reused for every event of that kind. Sending it again while it's still queued just updates
+ * the queued event, so superseded events are coalesced instead of queued. Values put into the
+ * map must not be changed once sent, only the map itself is copied for the main thread. In
+ * {@link #setCompact(boolean) compact} mode they are built on a {@link PackedEvent} instead.
+ * <p>
+ * The queue is a bounded ring buffer, on overflow the {@link OverflowPolicy} decides which
+ * event is dropped.
+ * <p>
+ * Must be used from the thread of the looper it is created with, usually the playback thread.
+ * The delegate may be set from any thread and is always called on the main thread.
+ */
+final class QueuingEventSink implements EventChannel.EventSink, Choreographer.FrameCallback, Runnable {
 
     private static final String TAG = QueuingEventSink.class.getSimpleName();
 
+    static final int DEFAULT_CAPACITY = 64;
+
+    enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+    }
+
     private static class EndOfStreamEvent {}
 
     private static class ErrorEvent {
@@ -25,55 +52,316 @@ final class QueuingEventSink implements EventChannel.EventSink {
         }
     }
 
-    private EventChannel.EventSink delegate;
-    private List<Object>           eventQueue = new ArrayList<>();
-    private boolean                done       = false;
+    private static final class ReusableEvent extends HashMap<String, Object> {
+        boolean queued;
+    }
+
+    /**
+     * Reusable event in the {@link CompactEvents} layout, sent as its values.
+     */
+    static final class PackedEvent {
+        final long[] values;
+        boolean      queued;
+
+        private PackedEvent(int length) {
+            this.values = new long[length];
+        }
+    }
+
+    private final Object[]                   queue;
+    private final Map<String, ReusableEvent> reusableEvents = new HashMap<>();
+    private final PackedEvent[]              packedEvents   = new PackedEvent[8];
+    private final List<QueuingEventSink>     mirrors        = new ArrayList<>();
+    private final Handler                    handler;
+    private final Handler                    mainHandler    = new Handler(Looper.getMainLooper());
+    private       OverflowPolicy             overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private       int                        flushIntervalMs;
+    private       boolean                    compact;
+    private       int                        head;
+    private       int                        size;
+
+    private volatile EventChannel.EventSink delegate;
+
+    private boolean done           = false;
+    private boolean flushScheduled = false;
+
+    private long dropped;
+    private long coalesced;
+    private long flushes;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    QueuingEventSink(Looper looper) {
+        this(looper, DEFAULT_CAPACITY);
+    }
+
+    QueuingEventSink(Looper looper, int capacity) {
+        this.handler = new Handler(looper);
+        this.queue = new Object[capacity];
+    }
 
     public void setDelegate(EventChannel.EventSink delegate) {
         this.delegate = delegate;
-        maybeFlush();
+        if (Looper.myLooper() == handler.getLooper()) {
+            flush();
+        } else {
+            handler.post(flushTask);
+        }
+    }
+
+    /**
+     * Sends every following event to mirror too, e.g. the sink of another texture showing the
+     * same player. The mirror must use the same looper, it queues and coalesces on its own.
+     */
+    void addMirror(QueuingEventSink mirror) {
+        mirrors.add(mirror);
+    }
+
+    void removeMirror(QueuingEventSink mirror) {
+        mirrors.remove(mirror);
+    }
+
+    void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param flushIntervalMs 0 flushes once per frame.
+     */
+    void setFlushInterval(int flushIntervalMs) {
+        this.flushIntervalMs = Math.max(0, flushIntervalMs);
+    }
+
+    /**
+     * Set before events are sent, high frequency events are then packed instead of maps.
+     */
+    void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Returns the reusable packed event of the given {@link CompactEvents} type, with the header
+     * set. If the previous event of this type is still queued, it will be superseded.
+     */
+    PackedEvent obtainPacked(int type, int length) {
+        PackedEvent event = packedEvents[type];
+        if (event == null || event.values.length != length) {
+            // a queued event of another length is still sent, just no longer reused.
+            event = new PackedEvent(length);
+            packedEvents[type] = event;
+        }
+        event.values[0] = CompactEvents.header(type);
+        return event;
+    }
+
+    /**
+     * Returns the reusable map for the given event kind, cleared except for the "event" key.
+     * If the previous event of this kind is still queued, it will be superseded.
+     */
+    Map<String, Object> obtain(String kind) {
+        ReusableEvent event = reusableEvents.get(kind);
+        if (event == null) {
+            event = new ReusableEvent();
+            reusableEvents.put(kind, event);
+        }
+        event.clear();
+        event.put("event", kind);
+        return event;
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("queued", size);
+        stats.put("dropped", dropped);
+        stats.put("coalesced", coalesced);
+        stats.put("flushes", flushes);
+        return stats;
     }
 
     private void enqueue(Object event) {
         if (done) {
             return;
         }
-        eventQueue.add(event);
+        if (event instanceof ReusableEvent) {
+            ReusableEvent reusableEvent = (ReusableEvent) event;
+            if (reusableEvent.queued) {
+                coalesced++;
+                return;
+            }
+            reusableEvent.queued = true;
+        } else if (event instanceof PackedEvent) {
+            PackedEvent packedEvent = (PackedEvent) event;
+            if (packedEvent.queued) {
+                coalesced++;
+                return;
+            }
+            packedEvent.queued = true;
+        }
+        if (size == queue.length) {
+            dropped++;
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                release(event);
+                return;
+            }
+            release(poll());
+        }
+        queue[(head + size) % queue.length] = event;
+        size++;
     }
 
-    private void maybeFlush() {
-        if (delegate == null) {
+    private Object poll() {
+        Object event = queue[head];
+        queue[head] = null;
+        head = (head + 1) % queue.length;
+        size--;
+        return event;
+    }
+
+    private static void release(Object event) {
+        if (event instanceof ReusableEvent) {
+            ((ReusableEvent) event).queued = false;
+        } else if (event instanceof PackedEvent) {
+            ((PackedEvent) event).queued = false;
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled || delegate == null) {
             return;
         }
-        for (Object event : eventQueue) {
-            if (event instanceof EndOfStreamEvent) {
-                delegate.endOfStream();
-            } else if (event instanceof ErrorEvent) {
-                ErrorEvent errorEvent = (ErrorEvent) event;
-                delegate.error(errorEvent.code, errorEvent.message, errorEvent.details);
+        flushScheduled = true;
+        if (flushIntervalMs == 0) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            handler.postDelayed(this, flushIntervalMs);
+        }
+    }
+
+    private void flush() {
+        if (flushScheduled) {
+            flushScheduled = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+            handler.removeCallbacks(this);
+        }
+        EventChannel.EventSink delegate = this.delegate;
+        if (delegate == null || size == 0) {
+            return;
+        }
+        flushes++;
+        if (handler.getLooper() == Looper.getMainLooper()) {
+            while (size > 0) {
+                Object event = poll();
+                // the codec encodes synchronously, so reusable events can be refilled afterwards.
+                deliver(delegate, event);
+                release(event);
+            }
+            return;
+        }
+        // reusable events are refilled on this thread while the main thread encodes, send copies.
+        // shallow ones, the values themselves are never changed once sent.
+        final Object[] batch = new Object[size];
+        for (int i = 0; i < batch.length; i++) {
+            Object event = poll();
+            if (event instanceof ReusableEvent) {
+                release(event);
+                event = new HashMap<>((ReusableEvent) event);
+            } else if (event instanceof PackedEvent) {
+                release(event);
+                event = ((PackedEvent) event).values.clone();
+            }
+            batch[i] = event;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                EventChannel.EventSink delegate = QueuingEventSink.this.delegate;
+                if (delegate == null) {
+                    return;
+                }
+                for (Object event : batch) {
+                    deliver(delegate, event);
+                }
+            }
+        });
+    }
+
+    private static void deliver(EventChannel.EventSink delegate, Object event) {
+        if (event instanceof EndOfStreamEvent) {
+            delegate.endOfStream();
+        } else if (event instanceof ErrorEvent) {
+            ErrorEvent errorEvent = (ErrorEvent) event;
+            delegate.error(errorEvent.code, errorEvent.message, errorEvent.details);
+        } else if (event instanceof PackedEvent) {
+            delegate.success(((PackedEvent) event).values);
+        } else {
+            delegate.success(event);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        flushScheduled = false;
+        flush();
+    }
+
+    @Override
+    public void run() {
+        flushScheduled = false;
+        flush();
+    }
+
+    /**
+     * Reusable events are copied into the reusable events of the mirror, so they coalesce there.
+     */
+    private void mirror(Object event) {
+        for (QueuingEventSink mirror : mirrors) {
+            if (event instanceof ReusableEvent) {
+                ReusableEvent       reusableEvent = (ReusableEvent) event;
+                Map<String, Object> copy          = mirror.obtain((String) reusableEvent.get("event"));
+                copy.putAll(reusableEvent);
+                mirror.success(copy);
+            } else if (event instanceof PackedEvent) {
+                long[]      values = ((PackedEvent) event).values;
+                PackedEvent copy   = mirror.obtainPacked((int) (values[0] & 0xffff), values.length);
+                System.arraycopy(values, 1, copy.values, 1, values.length - 1);
+                mirror.success(copy);
             } else {
-                delegate.success(event);
+                mirror.success(event);
             }
         }
-        eventQueue.clear();
     }
 
     @Override
     public void success(Object event) {
+        if (!mirrors.isEmpty()) {
+            mirror(event);
+        }
         enqueue(event);
-        maybeFlush();
+        scheduleFlush();
     }
 
     @Override
     public void error(String errorCode, String errorMessage, Object errorDetails) {
+        for (QueuingEventSink mirror : mirrors) {
+            mirror.error(errorCode, errorMessage, errorDetails);
+        }
         enqueue(new ErrorEvent(errorCode, errorMessage, errorDetails));
-        maybeFlush();
+        scheduleFlush();
     }
 
     @Override
     public void endOfStream() {
         enqueue(new EndOfStreamEvent());
-        maybeFlush();
+        flush();
         done = true;
     }
 }
@@ -0,0 +1,194 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Process wide store of resume positions, keyed by media uri or a content id of the caller.
+ * <p>
+ * Positions are read from and updated in memory, the least recently played are dropped after
+ * {@link #MAX_ENTRIES}. Changes are written to disk on a thread of its own at most once every
+ * {@link #FLUSH_INTERVAL_MS}, in a single atomic write that survives process death.
+ * <p>
+ * Methods may be called from any thread.
+ */
+final class ResumeStore implements Runnable {
+    private static final String TAG = ResumeStore.class.getSimpleName();
+
+    private static final String FILE              = "asuna_video_player_resume";
+    private static final int    VERSION           = 1;
+    private static final int    MAX_ENTRIES       = 500;
+    private static final long   FLUSH_INTERVAL_MS = 5000;
+    // nothing worth resuming before this.
+    private static final long   MIN_POSITION_MS   = 5000;
+
+    private static ResumeStore instance;
+
+    private final AtomicFile        file;
+    private final Handler           handler;
+    private final Map<String, Long> positions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // guarded by this.
+    private boolean flushScheduled;
+    private int     hits;
+    private int     misses;
+    private int     writes;
+
+    private ResumeStore(Context context) {
+        this.file = new AtomicFile(new File(context.getFilesDir(), FILE));
+        HandlerThread thread = new HandlerThread("asuna-resume");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+        load();
+    }
+
+    static synchronized ResumeStore get(Context context) {
+        if (instance == null) {
+            instance = new ResumeStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @return the saved position in milliseconds, or {@link C#TIME_UNSET} if there is none.
+     */
+    synchronized long get(String key) {
+        Long positionMs = positions.get(key);
+        if (positionMs == null) {
+            misses++;
+            return C.TIME_UNSET;
+        }
+        hits++;
+        return positionMs;
+    }
+
+    /**
+     * Positions near the start are not worth resuming from and remove the saved one.
+     */
+    synchronized void put(String key, long positionMs) {
+        if (positionMs < MIN_POSITION_MS) {
+            remove(key);
+            return;
+        }
+        Long previous = positions.put(key, positionMs);
+        if (previous == null || previous != positionMs) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Called when a video played to its end, it starts over next time.
+     */
+    synchronized void remove(String key) {
+        if (positions.remove(key) != null) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Writes pending changes now, e.g. before the process may be killed.
+     */
+    synchronized void flush() {
+        if (flushScheduled) {
+            handler.removeCallbacks(this);
+            handler.post(this);
+        }
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("entries", positions.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("writes", writes);
+        return stats;
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(this, FLUSH_INTERVAL_MS);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Map.Entry<String, Long>> snapshot;
+        synchronized (this) {
+            flushScheduled = false;
+            writes++;
+            // least recently played first, so loading restores the order.
+            snapshot = new ArrayList<Map.Entry<String, Long>>(new LinkedHashMap<>(positions).entrySet());
+        }
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeInt(VERSION);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Long> entry : snapshot) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+            output.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Timber.tag(TAG).w(e, "failed to save resume positions");
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private void load() {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (input.readInt() != VERSION) {
+                Timber.tag(TAG).w("drop resume positions of another version");
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                positions.put(input.readUTF(), input.readLong());
+            }
+        } catch (FileNotFoundException e) {
+            // nothing saved yet.
+        } catch (IOException e) {
+            Timber.tag(TAG).w(e, "drop invalid resume positions");
+            positions.clear();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One exo player shown on several textures, e.g. inline and in a mini player during a
+ * transition. The first "shared" create of a source builds the player, later ones for the same
+ * source and player config attach an {@link Output} to it instead of decoding and streaming it
+ * again.
+ * <p>
+ * The player renders straight into the texture it was created with while that is its only
+ * output, and through a {@link FrameFanOut} into every output otherwise. Transport controls of
+ * any output apply to the player, which is hidden only once all outputs are, and disposed with
+ * the last output. The texture it was created with stays leased until then. The
+ * {@link PlayerResourceManager} counts the player once, suspending and resuming any output
+ * suspends and resumes the player.
+ * <p>
+ * Only accessed from the playback thread.
+ */
+final class SharedPlayback {
+
+    private final EXOVideoPlayerAdapter player;
+    private final VideoTexture          playerTexture;
+    private final QueuingEventSink      playerEvents;
+    private final TexturePool           texturePool;
+    private final Handler               mainHandler;
+    private final List<Output>          outputs = new ArrayList<>();
+
+    private FrameFanOut fanOut;
+    private boolean     released;
+
+    /**
+     * @param texture   the texture the player renders into.
+     * @param eventSink the sink the player sends its events to.
+     */
+    SharedPlayback(
+            EXOVideoPlayerAdapter player,
+            VideoTexture texture,
+            QueuingEventSink eventSink,
+            PlayerResources resources,
+            Handler mainHandler) {
+        this.player = player;
+        this.playerTexture = texture;
+        this.playerEvents = eventSink;
+        this.texturePool = resources.texturePool;
+        this.mainHandler = mainHandler;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    IAsunaVideoPlayer.State getState() {
+        return player.getState();
+    }
+
+    /**
+     * A texture the player is shown on, the resource manager knows the player by it.
+     */
+    long textureId() {
+        return outputs.get(0).texture.id();
+    }
+
+    /**
+     * Shows the player on texture as well, its events go to eventSink too. The player's own
+     * texture and sink are attached first.
+     */
+    Output attach(VideoTexture texture, QueuingEventSink eventSink) {
+        if (texture != playerTexture) {
+            if (fanOut == null) {
+                fanOut = new FrameFanOut();
+                // the decoder leaves the texture before the fan out draws into it.
+                player.setFanOut(fanOut);
+                fanOut.addOutput(playerTexture);
+            }
+            fanOut.addOutput(texture);
+            playerEvents.addMirror(eventSink);
+            player.sendInitialized(eventSink);
+        }
+        Output output = new Output(texture, eventSink);
+        outputs.add(output);
+        output.setVisibility(true);
+        // a new output is active, even if the player was suspended while hidden.
+        player.resume();
+        return output;
+    }
+
+    private void detach(Output output) {
+        if (!outputs.remove(output)) {
+            return;
+        }
+        if (fanOut != null) {
+            fanOut.removeOutput(output.texture);
+        }
+        if (output.texture != playerTexture) {
+            playerEvents.removeMirror(output.eventSink);
+            recycle(output.texture);
+        }
+        if (outputs.isEmpty()) {
+            release();
+            return;
+        }
+        if (fanOut != null && outputs.size() == 1 && outputs.get(0).texture == playerTexture) {
+            // back to rendering straight into the texture.
+            fanOut.removeOutput(playerTexture);
+            player.setFanOut(null);
+            fanOut.release();
+            fanOut = null;
+        }
+        updateViewport();
+        updateVisibility();
+    }
+
+    private void release() {
+        released = true;
+        player.dispose();
+        if (fanOut != null) {
+            fanOut.release();
+            fanOut = null;
+        }
+        recycle(playerTexture);
+    }
+
+    private void recycle(final VideoTexture texture) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                texturePool.recycle(texture);
+            }
+        });
+    }
+
+    /**
+     * The track selection sees the largest viewport, each texture is sized to its own.
+     */
+    private void updateViewport() {
+        int width  = 0;
+        int height = 0;
+        for (Output output : outputs) {
+            width = Math.max(width, output.viewportWidth);
+            height = Math.max(height, output.viewportHeight);
+        }
+        player.setViewportSize(width, height);
+        if (fanOut != null) {
+            for (Output output : outputs) {
+                output.texture.setDisplaySize(output.viewportWidth, output.viewportHeight);
+            }
+        }
+    }
+
+    private void updateVisibility() {
+        boolean visible = false;
+        for (Output output : outputs) {
+            visible |= output.visible;
+        }
+        player.setVisibility(visible);
+    }
+
+    /**
+     * The player as seen from one of its textures.
+     */
+    final class Output extends AbstractAsunaVideoPlayer {
+        private final VideoTexture     texture;
+        private final QueuingEventSink eventSink;
+
+        private int     viewportWidth;
+        private int     viewportHeight;
+        private boolean visible;
+
+        private Output(VideoTexture texture, QueuingEventSink eventSink) {
+            this.texture = texture;
+            this.eventSink = eventSink;
+        }
+
+        @Override
+        public State getState() {
+            return player.getState();
+        }
+
+        @Override
+        public void play() {
+            player.play();
+        }
+
+        @Override
+        public void pause() {
+            player.pause();
+        }
+
+        @Override
+        public void setLooping(boolean looping) {
+            player.setLooping(looping);
+        }
+
+        @Override
+        public void setVolume(double value) {
+            player.setVolume(value);
+        }
+
+        @Override
+        public void seekTo(int location, SeekMode mode) {
+            player.seekTo(location, mode);
+        }
+
+        @Override
+        public long getPosition() {
+            return player.getPosition();
+        }
+
+        @Override
+        public void addItem(String dataSource, int index) {
+            player.addItem(dataSource, index);
+        }
+
+        @Override
+        public void removeItem(int index) {
+            player.removeItem(index);
+        }
+
+        @Override
+        public void moveItem(int fromIndex, int toIndex) {
+            player.moveItem(fromIndex, toIndex);
+        }
+
+        @Override
+        public void next() {
+            player.next();
+        }
+
+        @Override
+        public void previous() {
+            player.previous();
+        }
+
+        @Override
+        public void setProgressInterval(int intervalMs) {
+            player.setProgressInterval(intervalMs);
+        }
+
+        @Override
+        public void setViewportSize(int width, int height) {
+            viewportWidth = width;
+            viewportHeight = height;
+            updateViewport();
+        }
+
+        @Override
+        public void setTrackConstraints(int maxWidth, int maxHeight, int maxBitrate, boolean preferLowestWhenHidden) {
+            player.setTrackConstraints(maxWidth, maxHeight, maxBitrate, preferLowestWhenHidden);
+        }
+
+        @Override
+        public void setVisibility(boolean visible) {
+            this.visible = visible;
+            updateVisibility();
+        }
+
+        @Override
+        public void suspend() {
+            player.suspend();
+        }
+
+        @Override
+        public void resume() {
+            player.resume();
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return player.isSuspended();
+        }
+
+        @Override
+        public void setStatsInterval(int intervalMs) {
+            player.setStatsInterval(intervalMs);
+        }
+
+        @Override
+        public Map<String, Object> getStats() {
+            Map<String, Object> stats = player.getStats();
+            stats.put("sharedOutputs", outputs.size());
+            if (fanOut != null) {
+                stats.put("fanOut", fanOut.stats());
+            }
+            return stats;
+        }
+
+        /**
+         * The player's metrics once this is its last output, null before.
+         */
+        @Override
+        PlaybackMetrics metrics() {
+            return outputs.size() == 1 && outputs.contains(this) ? player.metrics() : null;
+        }
+
+        @Override
+        public void dispose() {
+            detach(this);
+        }
+
+        @Override
+        public void sendBufferingUpdate() {
+            player.sendBufferingUpdate();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package danielwii.github.io.asuna_video_player;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.view.TextureRegistry;
+import timber.log.Timber;
+
+/**
+ * Keeps the textures of disposed players for the next ones, so a feed scrolling through videos
+ * doesn't register a new flutter texture for each of them.
+ * <p>
+ * Textures are acquired and recycled on the main thread, stats are read from any thread.
+ */
+final class TexturePool {
+    private static final String TAG = TexturePool.class.getSimpleName();
+
+    static final int DEFAULT_MAX_SIZE = 2;
+
+    private final ArrayDeque<VideoTexture> idleTextures = new ArrayDeque<>();
+    // every texture leased to a player, by id.
+    private final Map<Long, VideoTexture>  textures     = new HashMap<>();
+    private       int                      maxSize      = DEFAULT_MAX_SIZE;
+
+    private long created;
+    private long reused;
+
+    synchronized VideoTexture acquire(TextureRegistry registry) {
+        VideoTexture texture = idleTextures.pollLast();
+        if (texture != null) {
+            reused++;
+        } else {
+            created++;
+            texture = new VideoTexture(registry.createSurfaceTexture());
+        }
+        // the trace of the texture's previous player.
+        Tracing.drop(texture.id());
+        textures.put(texture.id(), texture);
+        return texture;
+    }
+
+    /**
+     * Called once the player of the texture is disposed.
+     */
+    synchronized void recycle(VideoTexture texture) {
+        textures.remove(texture.id());
+        if (idleTextures.size() < maxSize && texture.clear()) {
+            idleTextures.addLast(texture);
+            return;
+        }
+        Timber.tag(TAG).d("release texture %d", texture.id());
+        Tracing.drop(texture.id());
+        texture.entry.release();
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+    }
+
+    synchronized void clear() {
+        for (VideoTexture texture : idleTextures) {
+            Tracing.drop(texture.id());
+            texture.entry.release();
+        }
+        idleTextures.clear();
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats      = new HashMap<>();
+        Map<String, Object> leased     = new HashMap<>();
+        long                totalBytes = 0;
+        for (VideoTexture texture : textures.values()) {
+            leased.put(String.valueOf(texture.id()), texture.stats());
+            totalBytes += texture.estimatedBytes();
+        }
+        for (VideoTexture texture : idleTextures) {
+            totalBytes += texture.estimatedBytes();
+        }
+        stats.put("textures", leased);
+        stats.put("idle", idleTextures.size());
+        stats.put("created", created);
+        stats.put("reused", reused);
+        stats.put("estimatedBytes", totalBytes);
+        return stats;
+    }
+}
@@ -0,0 +1,550 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.media.MediaDataSource;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.util.LruCache;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.MethodChannel;
+import timber.log.Timber;
+
+/**
+ * Extracts downscaled jpeg frames for scrub previews with a MediaMetadataRetriever, without
+ * running a player. Frames snap to the closest keyframe of their time bucket and are kept in
+ * a memory LRU backed by a disk LRU, keyed by source, bucket and width.
+ * <p>
+ * Requests for the same source are batched on one retriever and served newest first, so the
+ * frame under the finger comes before the ones it already passed. Replies null for frames
+ * that can't be extracted and for canceled requests.
+ * <p>
+ * Http sources are read through the {@link MediaCache} with the headers of the source, from M
+ * on, so frames come from what playback already cached and the other way around. HLS, DASH and
+ * SmoothStreaming aren't supported, a retriever only reads progressive files, requests for them
+ * are replied null right away.
+ */
+final class ThumbnailExtractor {
+    private static final String TAG = ThumbnailExtractor.class.getSimpleName();
+
+    static final int  DEFAULT_MEMORY_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_DISK_BYTES   = 32 * 1024 * 1024;
+    static final long BUCKET_MS            = 1000;
+
+    private static final int MAX_CONCURRENT_SOURCES = 2;
+    private static final int JPEG_QUALITY           = 75;
+
+    private static final class Request {
+        final String               key;
+        final long                 timeMs;
+        final int                  maxWidth;
+        final MethodChannel.Result result;
+
+        Request(String key, long timeMs, int maxWidth, MethodChannel.Result result) {
+            this.key = key;
+            this.timeMs = timeMs;
+            this.maxWidth = maxWidth;
+            this.result = result;
+        }
+    }
+
+    private final class Batch implements Runnable {
+        final String              dataSource;
+        final MediaCache          mediaCache;
+        final Map<String, String> headers;
+        final ArrayDeque<Request> requests = new ArrayDeque<>();
+
+        // only set while the retriever reads through the media cache.
+        private MediaDataSource mediaDataSource;
+
+        Batch(String dataSource, MediaCache mediaCache, Map<String, String> headers) {
+            this.dataSource = dataSource;
+            this.mediaCache = mediaCache;
+            this.headers = headers;
+        }
+
+        @Override
+        public void run() {
+            MediaMetadataRetriever retriever = null;
+            Request                request   = null;
+            try {
+                while ((request = next(this)) != null) {
+                    byte[] jpeg = memoryCache.get(request.key);
+                    if (jpeg == null) {
+                        jpeg = readFromDisk(request.key);
+                    }
+                    if (jpeg == null) {
+                        if (retriever == null) {
+                            retriever = open(this);
+                        }
+                        jpeg = extract(retriever, request);
+                        if (jpeg != null) {
+                            writeToDisk(request.key, jpeg);
+                        }
+                    }
+                    if (jpeg != null) {
+                        memoryCache.put(request.key, jpeg);
+                    }
+                    request.result.success(jpeg);
+                }
+            } catch (RuntimeException | IOException e) {
+                Timber.tag(TAG).w("extract thumbnails of %s failed: %s", dataSource, e);
+                failed++;
+                if (request != null) {
+                    request.result.success(null);
+                }
+                for (Request pending : remove(this)) {
+                    pending.result.success(null);
+                }
+            } finally {
+                if (retriever != null) {
+                    retriever.release();
+                }
+                closeMediaDataSource();
+            }
+        }
+
+        private void closeMediaDataSource() {
+            if (mediaDataSource == null) {
+                return;
+            }
+            try {
+                mediaDataSource.close();
+            } catch (IOException e) {
+                Timber.tag(TAG).w("close %s failed: %s", dataSource, e);
+            }
+            mediaDataSource = null;
+        }
+    }
+
+    private final Context                  context;
+    private final ThreadPoolExecutor       executor;
+    private final LruCache<String, byte[]> memoryCache;
+    private final File                     diskDirectory;
+    private final long                     maxDiskBytes;
+    // pending requests by source, guarded by this.
+    private final Map<String, Batch>       batches   = new HashMap<>();
+    // guarded by diskDirectory, -1 until the directory was scanned.
+    private       long                     diskBytes = -1;
+
+    private volatile long memoryHits;
+    private volatile long diskHits;
+    private volatile long extracted;
+    private volatile long failed;
+
+    ThumbnailExtractor(Context context) {
+        this(context, DEFAULT_MEMORY_BYTES, DEFAULT_DISK_BYTES);
+    }
+
+    ThumbnailExtractor(Context context, int maxMemoryBytes, long maxDiskBytes) {
+        this.context = context.getApplicationContext();
+        this.memoryCache = new LruCache<String, byte[]>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        this.diskDirectory = new File(this.context.getCacheDir(), "asuna_video_player_thumbnails");
+        this.maxDiskBytes = maxDiskBytes;
+        this.executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_SOURCES, MAX_CONCURRENT_SOURCES,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "asuna-thumbnails");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Replies the jpeg bytes of the frame near timeMs, at most maxWidth pixels wide.
+     *
+     * @param headers sent with http requests, may be null. Requests batched on one retriever
+     *                use the headers of the first.
+     */
+    void extract(
+            MediaCache mediaCache,
+            String dataSource,
+            Map<String, String> headers,
+            long timeMs,
+            int maxWidth,
+            MethodChannel.Result result) {
+        if (Util.inferContentType(Uri.parse(dataSource).getLastPathSegment()) != C.TYPE_OTHER) {
+            result.success(null);
+            return;
+        }
+        String key  = dataSource + '@' + (timeMs / BUCKET_MS) + 'w' + maxWidth;
+        byte[] jpeg = memoryCache.get(key);
+        if (jpeg != null) {
+            memoryHits++;
+            result.success(jpeg);
+            return;
+        }
+        synchronized (this) {
+            Batch batch = batches.get(dataSource);
+            if (batch == null) {
+                batch = new Batch(dataSource, mediaCache, headers);
+                batches.put(dataSource, batch);
+                executor.execute(batch);
+            }
+            batch.requests.addLast(new Request(key, timeMs / BUCKET_MS * BUCKET_MS, maxWidth, result));
+        }
+    }
+
+    /**
+     * Replies null to every pending request of the source, e.g. when scrubbing stopped.
+     */
+    void cancel(String dataSource) {
+        ArrayDeque<Request> canceled;
+        synchronized (this) {
+            Batch batch = batches.get(dataSource);
+            if (batch == null) {
+                return;
+            }
+            canceled = new ArrayDeque<>(batch.requests);
+            batch.requests.clear();
+        }
+        for (Request request : canceled) {
+            request.result.success(null);
+        }
+    }
+
+    void cancelAll() {
+        String[] dataSources;
+        synchronized (this) {
+            dataSources = batches.keySet().toArray(new String[0]);
+        }
+        for (String dataSource : dataSources) {
+            cancel(dataSource);
+        }
+    }
+
+    void dispose() {
+        cancelAll();
+        executor.shutdown();
+        memoryCache.evictAll();
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("memoryHits", memoryHits);
+        stats.put("diskHits", diskHits);
+        stats.put("extracted", extracted);
+        stats.put("failed", failed);
+        stats.put("memoryBytes", memoryCache.size());
+        synchronized (diskDirectory) {
+            stats.put("diskBytes", Math.max(0, diskBytes));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the newest pending request, or null after the batch was removed.
+     */
+    private synchronized Request next(Batch batch) {
+        Request request = batch.requests.pollLast();
+        if (request == null) {
+            batches.remove(batch.dataSource);
+        }
+        return request;
+    }
+
+    /**
+     * Removes a failed batch, later requests for its source start a new one.
+     */
+    private synchronized ArrayDeque<Request> remove(Batch batch) {
+        if (batches.get(batch.dataSource) == batch) {
+            batches.remove(batch.dataSource);
+        }
+        ArrayDeque<Request> pending = new ArrayDeque<>(batch.requests);
+        batch.requests.clear();
+        return pending;
+    }
+
+    private MediaMetadataRetriever open(Batch batch) throws IOException {
+        String                 dataSource = batch.dataSource;
+        MediaMetadataRetriever retriever  = new MediaMetadataRetriever();
+        Uri                    uri        = Uri.parse(dataSource);
+        String                 scheme     = uri.getScheme();
+        try {
+            if ("asset".equals(scheme)) {
+                AssetFileDescriptor descriptor = context.getAssets().openFd(uri.getPath().substring(1));
+                try {
+                    retriever.setDataSource(
+                            descriptor.getFileDescriptor(), descriptor.getStartOffset(), descriptor.getLength());
+                } finally {
+                    descriptor.close();
+                }
+            } else if (("http".equals(scheme) || "https".equals(scheme))
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                DataSource.Factory factory = batch.mediaCache.wrap(batch.mediaCache.newUpstreamFactory(batch.headers));
+                batch.mediaDataSource = new DataSourceReader(factory.createDataSource(), uri);
+                retriever.setDataSource(batch.mediaDataSource);
+            } else if ("http".equals(scheme) || "https".equals(scheme)) {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("User-Agent", batch.mediaCache.httpStack().userAgent());
+                if (batch.headers != null) {
+                    headers.putAll(batch.headers);
+                }
+                retriever.setDataSource(dataSource, headers);
+            } else {
+                retriever.setDataSource(context, uri);
+            }
+        } catch (RuntimeException | IOException e) {
+            retriever.release();
+            throw e;
+        }
+        return retriever;
+    }
+
+    /**
+     * Serves the random reads of a retriever from a data source, reopened wherever the retriever
+     * jumps to, e.g. the index at the end of an mp4.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static final class DataSourceReader extends MediaDataSource {
+        private final DataSource dataSource;
+        private final Uri        uri;
+        // of the open data source, -1 while it's closed.
+        private       long       position = -1;
+        // -1 until known.
+        private       long       size     = -1;
+
+        DataSourceReader(DataSource dataSource, Uri uri) {
+            this.dataSource = dataSource;
+            this.uri = uri;
+        }
+
+        @Override
+        public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            if (size == 0) {
+                return 0;
+            }
+            if (this.size >= 0 && position >= this.size) {
+                return -1;
+            }
+            if (position != this.position) {
+                open(position);
+            }
+            int read = dataSource.read(buffer, offset, size);
+            if (read == C.RESULT_END_OF_INPUT) {
+                return -1;
+            }
+            this.position += read;
+            return read;
+        }
+
+        @Override
+        public synchronized long getSize() throws IOException {
+            if (size < 0 && position < 0) {
+                open(0);
+            }
+            return size;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (position >= 0) {
+                position = -1;
+                dataSource.close();
+            }
+        }
+
+        private void open(long position) throws IOException {
+            close();
+            long length;
+            try {
+                length = dataSource.open(new DataSpec(uri, position, C.LENGTH_UNSET, null));
+            } catch (IOException e) {
+                // a data source must be closed even when opening it failed.
+                dataSource.close();
+                throw e;
+            }
+            if (size < 0 && length != C.LENGTH_UNSET) {
+                size = position + length;
+            }
+            this.position = position;
+        }
+    }
+
+    private byte[] extract(MediaMetadataRetriever retriever, Request request) {
+        long   timeUs = request.timeMs * 1000;
+        Bitmap frame;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            int width  = metadataInt(retriever, MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
+            int height = metadataInt(retriever, MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
+            if (width > request.maxWidth && height > 0) {
+                // decodes straight into the small bitmap instead of a full sized frame.
+                frame = retriever.getScaledFrameAtTime(
+                        timeUs,
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                        request.maxWidth,
+                        (int) ((long) height * request.maxWidth / width));
+            } else {
+                frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            }
+        } else {
+            frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            if (frame != null && frame.getWidth() > request.maxWidth) {
+                Bitmap scaled = Bitmap.createScaledBitmap(
+                        frame,
+                        request.maxWidth,
+                        Math.max(1, frame.getHeight() * request.maxWidth / frame.getWidth()),
+                        true);
+                frame.recycle();
+                frame = scaled;
+            }
+        }
+        if (frame == null) {
+            failed++;
+            return null;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        frame.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+        frame.recycle();
+        extracted++;
+        return output.toByteArray();
+    }
+
+    private static int metadataInt(MediaMetadataRetriever retriever, int key) {
+        String value = retriever.extractMetadata(key);
+        try {
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // --------------------------------------------------------------
+    // disk cache
+    // --------------------------------------------------------------
+
+    private byte[] readFromDisk(String key) {
+        File file = new File(diskDirectory, fileName(key));
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] jpeg = new byte[(int) file.length()];
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < jpeg.length) {
+                    int count = input.read(jpeg, read, jpeg.length - read);
+                    if (count < 0) return null;
+                    read += count;
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        // the eviction order is by modification time.
+        file.setLastModified(System.currentTimeMillis());
+        diskHits++;
+        return jpeg;
+    }
+
+    private void writeToDisk(String key, byte[] jpeg) {
+        synchronized (diskDirectory) {
+            if (diskBytes < 0) {
+                diskDirectory.mkdirs();
+                diskBytes = 0;
+                File[] files = diskDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) diskBytes += file.length();
+                }
+            }
+            File file = new File(diskDirectory, fileName(key));
+            try {
+                OutputStream output = new FileOutputStream(file);
+                try {
+                    output.write(jpeg);
+                } finally {
+                    output.close();
+                }
+                diskBytes += jpeg.length;
+            } catch (IOException e) {
+                Timber.tag(TAG).w("write thumbnail failed: %s", e);
+                file.delete();
+                return;
+            }
+            if (diskBytes > maxDiskBytes) {
+                trimDisk();
+            }
+        }
+    }
+
+    /**
+     * Deletes least recently used files until the directory is back to three quarters of max.
+     */
+    private void trimDisk() {
+        File[] files = diskDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (diskBytes <= maxDiskBytes / 4 * 3) {
+                return;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                diskBytes -= length;
+            }
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[]        digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name   = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(".jpg").toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package danielwii.github.io.asuna_video_player;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Process wide trace of the hot paths, off by default. Sections and instants are kept in a
+ * lock-free ring of the latest {@link #CAPACITY} events per texture id, and dumped in the
+ * chrome trace event format, chrome://tracing and perfetto open it. Pooled textures are reused
+ * by later players, so the {@link TexturePool} {@link #drop drops} the ring of a texture when
+ * it's leased again or released, a ring only ever holds the events of one player.
+ * <p>
+ * While disabled every call returns after reading a volatile flag. Callers check
+ * {@link #isEnabled()} before formatting anything themselves, e.g. log messages.
+ * <pre>
+ * long beganAtNs = Tracing.begin();
+ * ...
+ * Tracing.end(textureId, "create", beganAtNs);
+ * </pre>
+ */
+final class Tracing {
+
+    // power of two, so the ring index is a mask of the sequence.
+    private static final int CAPACITY = 256;
+
+    private static final ConcurrentMap<Long, Ring> rings = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled;
+
+    private Tracing() {
+    }
+
+    private static final class Event {
+        final String name;
+        final long   timestampNs;
+        // -1 for instants.
+        final long   durationNs;
+
+        Event(String name, long timestampNs, long durationNs) {
+            this.name = name;
+            this.timestampNs = timestampNs;
+            this.durationNs = durationNs;
+        }
+    }
+
+    private static final class Ring {
+        final AtomicLong                  sequence = new AtomicLong();
+        final AtomicReferenceArray<Event> events   = new AtomicReferenceArray<>(CAPACITY);
+
+        void add(Event event) {
+            events.set((int) (sequence.getAndIncrement() & (CAPACITY - 1)), event);
+        }
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Disabling keeps the recorded events until {@link #clear()}.
+     */
+    static void setEnabled(boolean enabled) {
+        Tracing.enabled = enabled;
+    }
+
+    static void clear() {
+        rings.clear();
+    }
+
+    /**
+     * Forgets the events of the texture, they belong to a disposed player.
+     */
+    static void drop(long id) {
+        rings.remove(id);
+    }
+
+    /**
+     * @return the start of a section to pass to {@link #end}, 0 while disabled.
+     */
+    static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the section started by {@link #begin()}, sections begun while disabled are dropped.
+     */
+    static void end(long id, String name, long beganAtNs) {
+        if (!enabled || beganAtNs == 0) {
+            return;
+        }
+        ring(id).add(new Event(name, beganAtNs, System.nanoTime() - beganAtNs));
+    }
+
+    static void instant(long id, String name) {
+        if (!enabled) {
+            return;
+        }
+        ring(id).add(new Event(name, System.nanoTime(), -1));
+    }
+
+    /**
+     * @param id texture id of the player to dump, or null for all of them.
+     */
+    static String dump(Long id) throws JSONException {
+        JSONArray traceEvents = new JSONArray();
+        for (Map.Entry<Long, Ring> entry : rings.entrySet()) {
+            if (id == null || id.equals(entry.getKey())) {
+                dump(entry.getKey(), entry.getValue(), traceEvents);
+            }
+        }
+        JSONObject trace = new JSONObject();
+        trace.put("traceEvents", traceEvents);
+        trace.put("displayTimeUnit", "ms");
+        return trace.toString();
+    }
+
+    private static void dump(long id, Ring ring, JSONArray traceEvents) throws JSONException {
+        long end = ring.sequence.get();
+        // oldest first, slots being written meanwhile hold either event.
+        for (long i = Math.max(0, end - CAPACITY); i < end; i++) {
+            Event event = ring.events.get((int) (i & (CAPACITY - 1)));
+            if (event == null) {
+                continue;
+            }
+            JSONObject json = new JSONObject();
+            json.put("name", event.name);
+            json.put("pid", 0);
+            json.put("tid", id);
+            json.put("ts", event.timestampNs / 1000);
+            if (event.durationNs >= 0) {
+                json.put("ph", "X");
+                json.put("dur", event.durationNs / 1000);
+            } else {
+                json.put("ph", "i");
+                json.put("s", "t");
+            }
+            traceEvents.put(json);
+        }
+    }
+
+    private static Ring ring(long id) {
+        Ring ring = rings.get(id);
+        if (ring == null) {
+            Ring created = new Ring();
+            ring = rings.putIfAbsent(id, created);
+            if (ring == null) {
+                ring = created;
+            }
+        }
+        return ring;
+    }
+}
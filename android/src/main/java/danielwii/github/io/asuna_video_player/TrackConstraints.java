@@ -0,0 +1,29 @@
+package danielwii.github.io.asuna_video_player;
+
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+
+/**
+ * Per-player limits for adaptive track selection, so a player never picks a video track
+ * larger than the widget it is shown in.
+ */
+final class TrackConstraints {
+    // pixel size of the widget showing the video, reported by the dart side on layout.
+    int viewportWidth  = Integer.MAX_VALUE;
+    int viewportHeight = Integer.MAX_VALUE;
+
+    int maxVideoWidth   = Integer.MAX_VALUE;
+    int maxVideoHeight  = Integer.MAX_VALUE;
+    int maxVideoBitrate = Integer.MAX_VALUE;
+
+    boolean preferLowestWhenHidden = false;
+    boolean visible                = true;
+
+    void apply(DefaultTrackSelector trackSelector) {
+        trackSelector.setParameters(trackSelector.getParameters().buildUpon()
+                .setViewportSize(viewportWidth, viewportHeight, false)
+                .setMaxVideoSize(maxVideoWidth, maxVideoHeight)
+                .setMaxVideoBitrate(maxVideoBitrate)
+                .setForceLowestBitrate(preferLowestWhenHidden && !visible)
+                .build());
+    }
+}
@@ -0,0 +1,151 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.SurfaceTexture;
+import android.view.Surface;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.view.TextureRegistry;
+
+/**
+ * A flutter texture with the surface one player renders into, leased from the {@link TexturePool}.
+ * <p>
+ * The default buffer size follows the displayed size reported by setViewportSize, capped at
+ * the video size. Producers which set their own geometry, like video decoders, still write
+ * at the video size, so the memory estimate uses that while a player is attached.
+ */
+final class VideoTexture {
+
+    // queued, dequeued and the one the flutter renderer holds.
+    private static final int ATTACHED_BUFFERS = 3;
+    // just the last frame, kept by the flutter renderer.
+    private static final int DETACHED_BUFFERS = 1;
+
+    final TextureRegistry.SurfaceTextureEntry entry;
+
+    private volatile Surface surface;
+    private volatile boolean attached;
+
+    private volatile int displayWidth;
+    private volatile int displayHeight;
+    private volatile int videoWidth;
+    private volatile int videoHeight;
+    private volatile int bufferWidth;
+    private volatile int bufferHeight;
+
+    VideoTexture(TextureRegistry.SurfaceTextureEntry entry) {
+        this.entry = entry;
+    }
+
+    long id() {
+        return entry.id();
+    }
+
+    SurfaceTexture surfaceTexture() {
+        return entry.surfaceTexture();
+    }
+
+    /**
+     * The surface of the current lease, connects at most one producer at a time.
+     */
+    Surface surface() {
+        if (surface == null) {
+            surface = new Surface(entry.surfaceTexture());
+        }
+        return surface;
+    }
+
+    /**
+     * Called when the player connects its decoder to the surface, or detaches it while hidden.
+     */
+    void setAttached(boolean attached) {
+        this.attached = attached;
+    }
+
+    /**
+     * Pixel size of the widget showing the texture, 0 if unknown.
+     */
+    void setDisplaySize(int width, int height) {
+        displayWidth = width;
+        displayHeight = height;
+        updateBufferSize();
+    }
+
+    void setVideoSize(int width, int height) {
+        videoWidth = width;
+        videoHeight = height;
+        updateBufferSize();
+    }
+
+    /**
+     * Ends the lease, the surface is released and the buffer shrunk to a single black frame so
+     * the next player doesn't show the last frame of this one. Must be called once the player
+     * detached from the surface.
+     *
+     * @return false if the texture can't be cleared and should not be reused.
+     */
+    boolean clear() {
+        attached = false;
+        displayWidth = displayHeight = videoWidth = videoHeight = 0;
+        setBufferSize(2, 2);
+        Surface cleared = surface();
+        surface = null;
+        try {
+            Canvas canvas = cleared.lockCanvas(null);
+            canvas.drawColor(Color.BLACK);
+            cleared.unlockCanvasAndPost(canvas);
+            return true;
+        } catch (IllegalArgumentException | IllegalStateException | Surface.OutOfResourcesException e) {
+            // still connected to a producer.
+            return false;
+        } finally {
+            cleared.release();
+        }
+    }
+
+    long estimatedBytes() {
+        int width  = attached && videoWidth > 0 ? videoWidth : bufferWidth;
+        int height = attached && videoHeight > 0 ? videoHeight : bufferHeight;
+        // YUV 4:2:0 as decoders write it, 1.5 bytes per pixel.
+        return (long) width * height * 3 / 2 * (attached ? ATTACHED_BUFFERS : DETACHED_BUFFERS);
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("bufferWidth", bufferWidth);
+        stats.put("bufferHeight", bufferHeight);
+        stats.put("videoWidth", videoWidth);
+        stats.put("videoHeight", videoHeight);
+        stats.put("attached", attached);
+        stats.put("estimatedBytes", estimatedBytes());
+        return stats;
+    }
+
+    private void updateBufferSize() {
+        int width  = videoWidth;
+        int height = videoHeight;
+        if (width <= 0 || height <= 0) {
+            width = displayWidth;
+            height = displayHeight;
+        } else if (displayWidth > 0 && displayHeight > 0) {
+            // fits the video into the displayed size, never scales it up.
+            float scale = Math.min(1f, Math.min((float) displayWidth / width, (float) displayHeight / height));
+            width = Math.max(2, Math.round(width * scale) & ~1);
+            height = Math.max(2, Math.round(height * scale) & ~1);
+        }
+        if (width > 0 && height > 0) {
+            setBufferSize(width, height);
+        }
+    }
+
+    private void setBufferSize(int width, int height) {
+        if (width != bufferWidth || height != bufferHeight) {
+            bufferWidth = width;
+            bufferHeight = height;
+            entry.surfaceTexture().setDefaultBufferSize(width, height);
+        }
+    }
+}
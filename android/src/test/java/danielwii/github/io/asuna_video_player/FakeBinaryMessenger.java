@@ -0,0 +1,127 @@
+package danielwii.github.io.asuna_video_player;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.FlutterException;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.StandardMethodCodec;
+
+/**
+ * Connects the plugin's channels in process. Calls are encoded with the standard codec and
+ * handed over the way the engine passes them from dart, replies are decoded back. Messages the
+ * plugin sends, e.g. events, are counted per channel.
+ */
+final class FakeBinaryMessenger implements BinaryMessenger {
+
+    private final Map<String, BinaryMessageHandler> handlers = new HashMap<>();
+    private final Map<String, Integer>              sent     = new HashMap<>();
+
+    @Override
+    public void send(String channel, ByteBuffer message) {
+        send(channel, message, null);
+    }
+
+    @Override
+    public void send(String channel, ByteBuffer message, BinaryReply callback) {
+        synchronized (this) {
+            Integer count = sent.get(channel);
+            sent.put(channel, count == null ? 1 : count + 1);
+        }
+        if (callback != null) {
+            // nobody on the dart side handles it.
+            callback.reply(null);
+        }
+    }
+
+    @Override
+    public synchronized void setMessageHandler(String channel, BinaryMessageHandler handler) {
+        if (handler == null) {
+            handlers.remove(channel);
+        } else {
+            handlers.put(channel, handler);
+        }
+    }
+
+    /**
+     * The call as the handler of a channel receives it, to be {@link ByteBuffer#rewind()
+     * rewound} and dispatched again.
+     */
+    static ByteBuffer encode(MethodCall call) {
+        return received(StandardMethodCodec.INSTANCE.encodeMethodCall(call));
+    }
+
+    void dispatch(String channel, ByteBuffer message, BinaryReply reply) {
+        BinaryMessageHandler handler;
+        synchronized (this) {
+            handler = handlers.get(channel);
+        }
+        if (handler == null) {
+            throw new IllegalStateException("nothing listens on " + channel);
+        }
+        handler.onMessage(message, reply);
+    }
+
+    /**
+     * Calls method on channel, which must reply before returning.
+     *
+     * @return the decoded reply.
+     * @throws FlutterException if the plugin replied an error.
+     */
+    Object invoke(String channel, MethodCall call) {
+        final ByteBuffer[] reply   = new ByteBuffer[1];
+        final boolean[]    replied = new boolean[1];
+        dispatch(channel, encode(call), new BinaryReply() {
+            @Override
+            public void reply(ByteBuffer message) {
+                replied[0] = true;
+                reply[0] = message;
+            }
+        });
+        if (!replied[0]) {
+            throw new IllegalStateException(call.method + " on " + channel + " did not reply");
+        }
+        if (reply[0] == null) {
+            throw new IllegalStateException(call.method + " on " + channel + " is not implemented");
+        }
+        return StandardMethodCodec.INSTANCE.decodeEnvelope(received(reply[0]));
+    }
+
+    /**
+     * Starts listening to the event channel, like a dart stream subscription.
+     */
+    void listen(String channel) {
+        invoke(channel, new MethodCall("listen", null));
+    }
+
+    /**
+     * Channels starting with prefix that still have a handler.
+     */
+    synchronized int handlers(String prefix) {
+        int count = 0;
+        for (String channel : handlers.keySet()) {
+            if (channel.startsWith(prefix)) count++;
+        }
+        return count;
+    }
+
+    synchronized int sent(String channel) {
+        Integer count = sent.get(channel);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Codecs write up to the position of a buffer, the engine delivers those bytes in a new one.
+     */
+    private static ByteBuffer received(ByteBuffer message) {
+        message.flip();
+        ByteBuffer copy = ByteBuffer.allocateDirect(message.remaining());
+        copy.put(message);
+        copy.flip();
+        copy.order(ByteOrder.nativeOrder());
+        return copy;
+    }
+}
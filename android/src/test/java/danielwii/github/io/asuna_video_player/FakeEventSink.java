@@ -0,0 +1,30 @@
+package danielwii.github.io.asuna_video_player;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Counts what a stream sends instead of encoding it, keeps the last event.
+ */
+final class FakeEventSink implements EventChannel.EventSink {
+
+    long   successes;
+    long   errors;
+    long   endOfStreams;
+    Object lastEvent;
+
+    @Override
+    public void success(Object event) {
+        successes++;
+        lastEvent = event;
+    }
+
+    @Override
+    public void error(String errorCode, String errorMessage, Object errorDetails) {
+        errors++;
+    }
+
+    @Override
+    public void endOfStream() {
+        endOfStreams++;
+    }
+}
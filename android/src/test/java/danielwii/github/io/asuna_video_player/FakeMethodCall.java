@@ -0,0 +1,29 @@
+package danielwii.github.io.asuna_video_player;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+
+/**
+ * Method calls with a map of arguments, as the dart side sends them.
+ */
+final class FakeMethodCall {
+
+    private FakeMethodCall() {
+    }
+
+    /**
+     * @param keysAndValues argument names, each followed by its value.
+     */
+    static MethodCall of(String method, Object... keysAndValues) {
+        if (keysAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("every argument needs a value");
+        }
+        Map<String, Object> arguments = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            arguments.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return new MethodCall(method, arguments);
+    }
+}
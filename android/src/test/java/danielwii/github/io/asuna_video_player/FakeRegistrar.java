@@ -0,0 +1,114 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.app.Activity;
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.PluginRegistry;
+import io.flutter.plugin.platform.PlatformViewRegistry;
+import io.flutter.view.FlutterView;
+import io.flutter.view.TextureRegistry;
+
+/**
+ * Registers a plugin without an activity or flutter view, {@link #destroyView()} tears it down
+ * like the view going away.
+ */
+final class FakeRegistrar implements PluginRegistry.Registrar {
+
+    private final Context                                  context;
+    private final BinaryMessenger                          messenger;
+    private final TextureRegistry                          textures;
+    private final List<PluginRegistry.ViewDestroyListener> viewDestroyListeners = new ArrayList<>();
+
+    FakeRegistrar(Context context, BinaryMessenger messenger, TextureRegistry textures) {
+        this.context = context;
+        this.messenger = messenger;
+        this.textures = textures;
+    }
+
+    void destroyView() {
+        for (PluginRegistry.ViewDestroyListener listener : viewDestroyListeners) {
+            listener.onViewDestroy(null);
+        }
+    }
+
+    @Override
+    public Activity activity() {
+        return null;
+    }
+
+    @Override
+    public Context context() {
+        return context;
+    }
+
+    @Override
+    public Context activeContext() {
+        return context;
+    }
+
+    @Override
+    public BinaryMessenger messenger() {
+        return messenger;
+    }
+
+    @Override
+    public TextureRegistry textures() {
+        return textures;
+    }
+
+    @Override
+    public PlatformViewRegistry platformViewRegistry() {
+        return null;
+    }
+
+    @Override
+    public FlutterView view() {
+        return null;
+    }
+
+    @Override
+    public String lookupKeyForAsset(String asset) {
+        return "flutter_assets/" + asset;
+    }
+
+    @Override
+    public String lookupKeyForAsset(String asset, String packageName) {
+        return lookupKeyForAsset("packages/" + packageName + "/" + asset);
+    }
+
+    @Override
+    public PluginRegistry.Registrar publish(Object value) {
+        return this;
+    }
+
+    @Override
+    public PluginRegistry.Registrar addRequestPermissionsResultListener(
+            PluginRegistry.RequestPermissionsResultListener listener) {
+        return this;
+    }
+
+    @Override
+    public PluginRegistry.Registrar addActivityResultListener(PluginRegistry.ActivityResultListener listener) {
+        return this;
+    }
+
+    @Override
+    public PluginRegistry.Registrar addNewIntentListener(PluginRegistry.NewIntentListener listener) {
+        return this;
+    }
+
+    @Override
+    public PluginRegistry.Registrar addUserLeaveHintListener(PluginRegistry.UserLeaveHintListener listener) {
+        return this;
+    }
+
+    @Override
+    public PluginRegistry.Registrar addViewDestroyListener(PluginRegistry.ViewDestroyListener listener) {
+        viewDestroyListeners.add(listener);
+        return this;
+    }
+}
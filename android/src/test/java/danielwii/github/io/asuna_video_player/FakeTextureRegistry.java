@@ -0,0 +1,67 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.graphics.SurfaceTexture;
+
+import io.flutter.view.TextureRegistry;
+
+/**
+ * Hands out surface textures without a flutter renderer, and counts the ones never released.
+ */
+final class FakeTextureRegistry implements TextureRegistry {
+
+    private long nextId;
+    private int  created;
+    private int  released;
+
+    @Override
+    public synchronized SurfaceTextureEntry createSurfaceTexture() {
+        created++;
+        return new Entry(nextId++, new SurfaceTexture(0));
+    }
+
+    synchronized int created() {
+        return created;
+    }
+
+    /**
+     * Textures created and not released yet, either leased to a player or pooled.
+     */
+    synchronized int live() {
+        return created - released;
+    }
+
+    private synchronized void onReleased() {
+        released++;
+    }
+
+    private final class Entry implements SurfaceTextureEntry {
+        private final long           id;
+        private final SurfaceTexture surfaceTexture;
+        private       boolean        isReleased;
+
+        Entry(long id, SurfaceTexture surfaceTexture) {
+            this.id = id;
+            this.surfaceTexture = surfaceTexture;
+        }
+
+        @Override
+        public SurfaceTexture surfaceTexture() {
+            return surfaceTexture;
+        }
+
+        @Override
+        public long id() {
+            return id;
+        }
+
+        @Override
+        public void release() {
+            if (isReleased) {
+                throw new IllegalStateException("texture " + id + " released twice");
+            }
+            isReleased = true;
+            surfaceTexture.release();
+            onReleased();
+        }
+    }
+}
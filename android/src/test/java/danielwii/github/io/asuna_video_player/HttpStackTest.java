@@ -0,0 +1,165 @@
+package danielwii.github.io.asuna_video_player;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Dns;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads through the data sources of a stack resolving media.test to a local server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class HttpStackTest {
+
+    @Rule
+    public final MockWebServer server = new MockWebServer();
+
+    private CountingDns dns;
+    private HttpStack   stack;
+
+    @Before
+    public void setUp() throws IOException {
+        dns = new CountingDns(InetAddress.getByName(server.getHostName()));
+        stack = new HttpStack(dns);
+    }
+
+    @Test
+    public void sendsUserAgentAndHeaders() throws Exception {
+        stack.configure(
+                HttpStack.DEFAULT_CONNECT_TIMEOUT_MS,
+                HttpStack.DEFAULT_READ_TIMEOUT_MS,
+                HttpStack.DEFAULT_RETRIES,
+                "asuna-test/1.0");
+        server.enqueue(new MockResponse().setBody("media"));
+
+        assertEquals("media", read(stack.newFactory(Collections.singletonMap("Authorization", "Bearer token"), null)));
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("asuna-test/1.0", request.getHeader("User-Agent"));
+        assertEquals("Bearer token", request.getHeader("Authorization"));
+    }
+
+    @Test
+    public void retriesWithBackoff() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setBody("media"));
+
+        long startedAtNs = System.nanoTime();
+        assertEquals("media", read(stack.newFactory(null, null)));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtNs);
+
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2L, stack.stats().get("retries"));
+        // 100ms before the first retry, 200ms before the second.
+        assertTrue("retried after " + elapsedMs + "ms", elapsedMs >= 300);
+    }
+
+    @Test
+    public void givesUpAfterConfiguredRetries() throws Exception {
+        stack.configure(
+                HttpStack.DEFAULT_CONNECT_TIMEOUT_MS,
+                HttpStack.DEFAULT_READ_TIMEOUT_MS,
+                1,
+                HttpStack.DEFAULT_USER_AGENT);
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setBody("media"));
+
+        try {
+            read(stack.newFactory(null, null));
+            fail("read after " + server.getRequestCount() + " requests");
+        } catch (IOException expected) {
+        }
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1L, stack.stats().get("retries"));
+    }
+
+    @Test
+    public void cachesDnsLookups() throws Exception {
+        // closes the connection, so the second request resolves the host again.
+        server.enqueue(new MockResponse().setBody("first").setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+        server.enqueue(new MockResponse().setBody("second"));
+
+        assertEquals("first", read(stack.newFactory(null, null)));
+        assertEquals("second", read(stack.newFactory(null, null)));
+
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(1, dns.lookups);
+        assertEquals(1L, stack.stats().get("dnsMisses"));
+        assertEquals(1L, stack.stats().get("dnsHits"));
+    }
+
+    @Test
+    public void reusesConnections() throws Exception {
+        server.enqueue(new MockResponse().setBody("first"));
+        server.enqueue(new MockResponse().setBody("second"));
+
+        assertEquals("first", read(stack.newFactory(null, null)));
+        // factories share the client and its connection pool.
+        assertEquals("second", read(stack.newFactory(null, null)));
+
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+        assertEquals(1, stack.stats().get("connections"));
+    }
+
+    private String read(HttpDataSource.Factory factory) throws IOException {
+        DataSource            dataSource = factory.createDataSource();
+        ByteArrayOutputStream output     = new ByteArrayOutputStream();
+        try {
+            dataSource.open(new DataSpec(Uri.parse("http://media.test:" + server.getPort() + "/media.mp4")));
+            byte[] buffer = new byte[4096];
+            int    read;
+            while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            dataSource.close();
+        }
+        return output.toString("UTF-8");
+    }
+
+    private static final class CountingDns implements Dns {
+        private final InetAddress address;
+        private       int         lookups;
+
+        CountingDns(InetAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public synchronized List<InetAddress> lookup(String hostname) {
+            lookups++;
+            return Collections.singletonList(address);
+        }
+    }
+}
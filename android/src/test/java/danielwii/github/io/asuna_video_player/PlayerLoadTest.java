@@ -0,0 +1,160 @@
+package danielwii.github.io.asuna_video_player;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Creates and disposes hundreds of players through the plugin's channels, like a feed scrolling
+ * through videos, and writes the create and dispose latencies and what leaked to
+ * build/reports/load/players.json.
+ * <p>
+ * Robolectric runs the playback thread's tasks as they are posted, so a latency is the time the
+ * plugin takes for the call on both threads.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PlayerLoadTest {
+
+    private static final String CHANNEL        = "asuna_video_player";
+    private static final String EVENTS_CHANNEL = CHANNEL + "/videoEvents";
+
+    private static final int PLAYERS = 300;
+    // players alive at once, the ones around the visible item of a feed.
+    private static final int ALIVE   = 4;
+
+    private FakeTextureRegistry textures;
+    private FakeBinaryMessenger messenger;
+    private FakeRegistrar       registrar;
+
+    @Before
+    public void setUp() {
+        textures = new FakeTextureRegistry();
+        messenger = new FakeBinaryMessenger();
+        registrar = new FakeRegistrar(RuntimeEnvironment.application, messenger, textures);
+        AsunaVideoPlayerPlugin.registerWith(registrar);
+        messenger.invoke(CHANNEL, FakeMethodCall.of("init"));
+    }
+
+    @After
+    public void tearDown() {
+        registrar.destroyView();
+    }
+
+    @Test
+    public void createAndDisposePlayers() throws IOException, JSONException {
+        long[]           createNs  = new long[PLAYERS];
+        long[]           disposeNs = new long[PLAYERS];
+        int              disposed  = 0;
+        ArrayDeque<Long> alive     = new ArrayDeque<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            long                startedAtNs = System.nanoTime();
+            Map<String, Object> reply       = invoke(FakeMethodCall.of(
+                    "create",
+                    "uri", "file:///load-test/" + i + ".mp4",
+                    "progressInterval", 250));
+            createNs[i] = System.nanoTime() - startedAtNs;
+
+            long textureId = ((Number) reply.get("textureId")).longValue();
+            messenger.listen(EVENTS_CHANNEL + textureId);
+            alive.addLast(textureId);
+            if (alive.size() > ALIVE) {
+                disposeNs[disposed++] = dispose(alive.pollFirst());
+            }
+        }
+        while (!alive.isEmpty()) {
+            disposeNs[disposed++] = dispose(alive.pollFirst());
+        }
+
+        Map<String, Object> stats          = invoke(FakeMethodCall.of("getPluginStats"));
+        Map<?, ?>           textureStats   = (Map<?, ?>) stats.get("textures");
+        Map<?, ?>           resourceStats  = (Map<?, ?>) stats.get("resources");
+        int                 leasedTextures = ((Map<?, ?>) textureStats.get("textures")).size();
+        int                 idleTextures   = ((Number) textureStats.get("idle")).intValue();
+
+        JSONObject leaks = new JSONObject();
+        // still leased to a player the plugin no longer knows.
+        leaks.put("leasedTextures", leasedTextures);
+        // neither leased nor kept by the pool for the next player.
+        leaks.put("unreleasedTextures", textures.live() - leasedTextures - idleTextures);
+        leaks.put("players", ((Number) resourceStats.get("players")).intValue());
+        leaks.put("eventChannels", messenger.handlers(EVENTS_CHANNEL));
+
+        JSONObject results = new JSONObject();
+        results.put("players", PLAYERS);
+        results.put("alive", ALIVE);
+        results.put("create", percentiles(createNs));
+        results.put("dispose", percentiles(disposeNs));
+        results.put("texturesCreated", textures.created());
+        results.put("pool", new JSONObject((Map<?, ?>) stats.get("pool")));
+        results.put("calls", new JSONObject((Map<?, ?>) stats.get("calls")));
+        results.put("leaks", leaks);
+        write(results, new File("build/reports/load/players.json"));
+
+        assertEquals(0, leaks.getInt("leasedTextures"));
+        assertEquals(0, leaks.getInt("unreleasedTextures"));
+        assertEquals(0, leaks.getInt("players"));
+        assertEquals(0, leaks.getInt("eventChannels"));
+    }
+
+    private long dispose(long textureId) {
+        long startedAtNs = System.nanoTime();
+        invoke(FakeMethodCall.of("dispose", "textureId", textureId));
+        return System.nanoTime() - startedAtNs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> invoke(MethodCall call) {
+        return (Map<String, Object>) messenger.invoke(CHANNEL, call);
+    }
+
+    private static JSONObject percentiles(long[] latenciesNs) throws JSONException {
+        long[] sorted = latenciesNs.clone();
+        Arrays.sort(sorted);
+        JSONObject percentiles = new JSONObject();
+        percentiles.put("p50Us", percentile(sorted, 50) / 1000);
+        percentiles.put("p90Us", percentile(sorted, 90) / 1000);
+        percentiles.put("p99Us", percentile(sorted, 99) / 1000);
+        percentiles.put("maxUs", sorted[sorted.length - 1] / 1000);
+        return percentiles;
+    }
+
+    /**
+     * Nearest rank of a sorted array.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static void write(JSONObject results, File file) throws IOException, JSONException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create " + directory);
+        }
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(results.toString(2));
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import 'dart:async';
 import 'dart:io';
+import 'dart:typed_data';
 
 import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
@@ -13,6 +14,14 @@ final _logger = Logger('AsunaVideoPlayer');
 
 typedef void EventHandler(Object event);
 
+/// Interval of the native "progress" events which replace polling "position".
+const Duration _progressInterval = Duration(milliseconds: 500);
+
+/// Schema of the packed high frequency events, see CompactEvents.java.
+const int _compactEventsVersion = 1;
+const int _compactProgress = 1;
+const int _compactBufferingUpdate = 2;
+
 final MethodChannel _channel = const MethodChannel('asuna_video_player')
 // This will clear all open videos on the platform when a full restart is performed.
   ..invokeMethod<void>("init");
@@ -69,6 +78,9 @@ class _AsunaVideoPlayerValue {
   /// Is null when [initialized] is false.
   final Size size;
 
+  /// Lifecycle state reported by the platform player, Android only.
+  final PlaybackState state;
+
   bool get initialized => duration != null;
   bool get hasError => errorDescription != null;
   double get aspectRatio => size != null ? size.width / size.height : 1.0;
@@ -83,6 +95,7 @@ class _AsunaVideoPlayerValue {
     this.isBuffering = false,
     this.volume = 1.0,
     this.errorDescription,
+    this.state = PlaybackState.idle,
   });
 
   _AsunaVideoPlayerValue.uninitialized() : this(duration: null);
@@ -100,6 +113,7 @@ class _AsunaVideoPlayerValue {
     bool isBuffering,
     double volume,
     String errorDescription,
+    PlaybackState state,
   }) {
     return _AsunaVideoPlayerValue(
       duration: duration ?? this.duration,
@@ -111,6 +125,7 @@ class _AsunaVideoPlayerValue {
       isBuffering: isBuffering ?? this.isBuffering,
       volume: volume ?? this.volume,
       errorDescription: errorDescription ?? this.errorDescription,
+      state: state ?? this.state,
     );
   }
 
@@ -124,49 +139,447 @@ class _AsunaVideoPlayerValue {
         'isBuffering: $isBuffering, '
         'volume: $volume, '
         'errorDescription: $errorDescription, '
+        'state: $state, '
         'size: $size}';
   }
 }
 
 enum DataSourceType { asset, network, file }
 
+/// States of the platform player, sent on every transition with the position at that time.
+enum PlaybackState { idle, preparing, ready, playing, buffering, paused, ended, error, released }
+
+/// Engine of the platform player. [auto] picks exo or ijk per container from the startup
+/// times and dropped frames of earlier videos. Android only, iOS always uses AVPlayer.
+enum PlayerEngine { exo, ijk, auto }
+
+/// Where a seek lands, the sync modes snap to a keyframe which is much faster while scrubbing.
+enum SeekMode { exact, closestSync, previousSync, nextSync }
+
+/// A command of [AsunaVideoPlayerController.batch], addressed to the player of [controller].
+class PlayerCommand {
+  final AsunaVideoPlayerController controller;
+  final String method;
+  final Map<String, dynamic> arguments;
+
+  PlayerCommand._(this.controller, this.method, [Map<String, dynamic> arguments])
+      : arguments = arguments ?? <String, dynamic>{};
+
+  PlayerCommand.play(AsunaVideoPlayerController controller) : this._(controller, 'play');
+
+  PlayerCommand.pause(AsunaVideoPlayerController controller) : this._(controller, 'pause');
+
+  PlayerCommand.seekTo(AsunaVideoPlayerController controller, Duration moment, {SeekMode mode = SeekMode.exact})
+      : this._(controller, 'seekTo', <String, dynamic>{
+          'location': moment.inMilliseconds,
+          'mode': mode.toString().split('.').last,
+        });
+
+  PlayerCommand.setVolume(AsunaVideoPlayerController controller, double volume)
+      : this._(controller, 'setVolume', <String, dynamic>{'volume': volume.clamp(0.0, 1.0)});
+
+  PlayerCommand.setLooping(AsunaVideoPlayerController controller, bool looping)
+      : this._(controller, 'setLooping', <String, dynamic>{'looping': looping});
+
+  PlayerCommand.setVisibility(AsunaVideoPlayerController controller, bool visible)
+      : this._(controller, 'setVisibility', <String, dynamic>{'visible': visible});
+
+  PlayerCommand.dispose(AsunaVideoPlayerController controller) : this._(controller, 'dispose');
+
+  Map<String, dynamic> _encode() =>
+      <String, dynamic>{'method': method, 'textureId': controller.textureId}..addAll(arguments);
+}
+
 class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
+  /// Every controller with a platform player, for [pauseAll] and [disposeAll].
+  static final Set<AsunaVideoPlayerController> _controllers = Set<AsunaVideoPlayerController>();
+
+  /// Commands queued by [_queue] until the end of the current event loop turn.
+  static List<PlayerCommand> _queuedCommands;
+
   final String dataSource;
   final DataSourceType dataSourceType;
   final String package;
   final Completer<void> initializingCompleter;
 
+  /// Buffering profile of the platform player, a preset name ('fast-start', 'low-memory',
+  /// 'long-form') or a map of custom buffer thresholds. Uses the platform default when null.
+  final dynamic bufferingProfile;
+
+  /// Headers sent with every request of a network video, e.g. authorization.
+  final Map<String, String> httpHeaders;
+
+  /// Engine of the platform player, exo when null.
+  final PlayerEngine engine;
+
+  /// Starts where the video was left off the last time it was played with [resume], and keeps
+  /// saving the position on the platform while it plays. A video played to its end starts over.
+  final bool resume;
+
+  /// Key of the saved position when [resume] is set, e.g. for sources with expiring urls.
+  /// The data source when null.
+  final String contentId;
+
+  /// Shows the platform player of another shared controller of the same data source if there
+  /// is one, e.g. inline and in a mini player at once, instead of decoding and streaming the
+  /// video twice. Play, pause and seek of either controller apply to both. Only controllers
+  /// with the same http headers, buffering profile, track constraints and playlist share a
+  /// player. Always uses exo, creating fails for [engine] ijk. Android only.
+  final bool shared;
+
   int _textureId;
   Timer _timer;
   bool _isDisposed = false;
 
+  /// true once the platform pushes "progress" events, polling is skipped then.
+  bool _hasNativeProgress = false;
+
+  /// true once the platform pushes "stateChanged" events, [position] is interpolated then.
+  bool _hasNativeState = false;
+
+  /// wall clock time in milliseconds at which the platform was at [value.position].
+  int _positionTimestamp;
+
+  /// last pixel size reported to the platform, see [setViewportSize].
+  Size _viewportSize;
+
   /// used to avoid exceptions in listener when widget being deactivated
   bool _isDeactivated = false;
   Completer<void> _creatingCompleter;
   StreamSubscription<dynamic> _eventSubscription;
   _VideoAppLifeCycleObserver _lifeCycleObserver;
 
-  AsunaVideoPlayerController.asset(this.dataSource, {this.package})
+  AsunaVideoPlayerController.asset(this.dataSource,
+      {this.package, this.bufferingProfile, this.engine, this.resume = false, this.contentId, this.shared = false})
       : dataSourceType = DataSourceType.asset,
+        httpHeaders = null,
         initializingCompleter = Completer<void>(),
         super(_AsunaVideoPlayerValue(duration: null));
 
-  AsunaVideoPlayerController.network(this.dataSource)
+  AsunaVideoPlayerController.network(this.dataSource,
+      {this.bufferingProfile,
+      this.httpHeaders,
+      this.engine,
+      this.resume = false,
+      this.contentId,
+      this.shared = false})
       : dataSourceType = DataSourceType.network,
         package = null,
         initializingCompleter = Completer<void>(),
         super(_AsunaVideoPlayerValue(duration: null));
 
-  AsunaVideoPlayerController.file(File file)
+  AsunaVideoPlayerController.file(File file,
+      {this.bufferingProfile, this.engine, this.resume = false, this.contentId, this.shared = false})
       : dataSource = 'file://${file.path}',
         dataSourceType = DataSourceType.file,
         package = null,
+        httpHeaders = null,
         initializingCompleter = Completer<void>(),
         super(_AsunaVideoPlayerValue(duration: null));
 
   int get textureId => _textureId;
   bool get isDisposed => _isDisposed;
 
+  /// Warms the head of an upcoming network video into the platform cache, so a later
+  /// controller for the same [uri] starts from cached data.
+  ///
+  /// Either [bytes] or [duration] limits how much is fetched. Returns false when the
+  /// source can't be preloaded (only progressive sources are supported). Android only, false
+  /// elsewhere.
+  static Future<bool> preload(String uri, {int bytes, Duration duration}) async {
+    if (!Platform.isAndroid) {
+      return false;
+    }
+    return _channel.invokeMethod<bool>('preload', <String, dynamic>{
+      'uri': uri,
+      'bytes': bytes,
+      'durationMs': duration?.inMilliseconds,
+    });
+  }
+
+  /// Cancels the preload of [uri], or all preloads if [uri] is null. Android only.
+  static Future<void> cancelPreload([String uri]) async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('cancelPreload', <String, dynamic>{'uri': uri});
+  }
+
+  /// Counters of the platform side shared by all players: cache, player pool, resources,
+  /// bitrate estimate and method call timings. Encode it as json to track runs over time.
+  /// Android only, null elsewhere.
+  static Future<Map<dynamic, dynamic>> pluginStats() async {
+    if (!Platform.isAndroid) {
+      return null;
+    }
+    return _channel.invokeMethod<Map<dynamic, dynamic>>('getPluginStats');
+  }
+
+  /// Playback metrics and event queue counters of this player, see [pluginStats]. Android
+  /// only, null elsewhere.
+  Future<Map<dynamic, dynamic>> get stats async {
+    if (!Platform.isAndroid || _isDisposed || _textureId == null) {
+      return null;
+    }
+    return _channel.invokeMethod<Map<dynamic, dynamic>>(
+        'getStats', <String, dynamic>{'textureId': _textureId});
+  }
+
+  /// Sets timeouts, retries and user agent of the shared platform http client, for videos
+  /// created afterwards. Android only.
+  static Future<void> configureHttp({
+    Duration connectTimeout,
+    Duration readTimeout,
+    int retries,
+    String userAgent,
+  }) async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('configureHttp', <String, dynamic>{
+      'connectTimeoutMs': connectTimeout?.inMilliseconds,
+      'readTimeoutMs': readTimeout?.inMilliseconds,
+      'retries': retries,
+      'userAgent': userAgent,
+    });
+  }
+
+  /// Turns the platform trace of create, prepare, first frame, seek and dispose on or off, and
+  /// the debug logs of every platform call with it. [clear] drops the events traced so far.
+  /// Android only.
+  static Future<void> setTracing(bool enabled, {bool clear = false}) async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('setTracing', <String, dynamic>{'enabled': enabled, 'clear': clear});
+  }
+
+  /// The latest traced events of [controller], or of every player when null, as chrome trace
+  /// event json for chrome://tracing or perfetto. Android only, null elsewhere.
+  static Future<String> dumpTrace([AsunaVideoPlayerController controller]) async {
+    if (!Platform.isAndroid) {
+      return null;
+    }
+    return _channel.invokeMethod<String>(
+        'dumpTrace', <String, dynamic>{'textureId': controller?._textureId});
+  }
+
+  /// Runs [commands] in order in a single platform call, e.g. to mute a feed or seek a grid
+  /// of players together. Completes with one result per command, failed commands are a map
+  /// with the 'error' code and 'message'. A failing command doesn't stop the ones after it.
+  /// Outside Android the commands are sent one by one.
+  static Future<List<dynamic>> batch(List<PlayerCommand> commands) async {
+    final List<dynamic> results = List<dynamic>(commands.length);
+    if (!Platform.isAndroid) {
+      for (int i = 0; i < commands.length; i++) {
+        results[i] = await _runUnbatched(commands[i]);
+      }
+      return results;
+    }
+    final List<Map<String, dynamic>> encoded = <Map<String, dynamic>>[];
+    final List<int> indices = <int>[];
+    for (int i = 0; i < commands.length; i++) {
+      final PlayerCommand command = commands[i];
+      // the texture id of a disposed controller may belong to another player by now.
+      if (command.controller._isDisposed || command.controller._textureId == null) {
+        results[i] = <String, dynamic>{'error': 'disposed', 'message': 'The controller is disposed'};
+        continue;
+      }
+      command.controller._applyBatched(command);
+      indices.add(i);
+      encoded.add(command._encode());
+    }
+    if (encoded.isNotEmpty) {
+      final List<dynamic> replies =
+          await _channel.invokeMethod<List<dynamic>>('batch', <String, dynamic>{'commands': encoded});
+      for (int i = 0; i < indices.length; i++) {
+        results[indices[i]] = replies[i];
+      }
+    }
+    return results;
+  }
+
+  /// Pauses every player, in a single platform call on Android.
+  static Future<void> pauseAll() async {
+    if (!Platform.isAndroid) {
+      for (AsunaVideoPlayerController controller in _controllers.toList()) {
+        await controller.pause();
+      }
+      return;
+    }
+    for (AsunaVideoPlayerController controller in _controllers) {
+      controller._markPaused();
+    }
+    await _channel.invokeMethod<int>('pauseAll');
+  }
+
+  /// Disposes every player, in a single platform call on Android. The controllers still
+  /// need [dispose].
+  static Future<void> disposeAll() async {
+    if (!Platform.isAndroid) {
+      for (AsunaVideoPlayerController controller in _controllers.toList()) {
+        await controller._disposePlatformPlayer();
+      }
+      return;
+    }
+    for (AsunaVideoPlayerController controller in _controllers.toList()) {
+      controller._detach();
+    }
+    await _channel.invokeMethod<int>('disposeAll');
+  }
+
+  /// Sends [command] with the others queued in the same event loop turn as one [batch].
+  /// Android only.
+  static void _queue(PlayerCommand command) {
+    if (_queuedCommands == null) {
+      _queuedCommands = <PlayerCommand>[];
+      scheduleMicrotask(() {
+        final List<PlayerCommand> commands = _queuedCommands;
+        _queuedCommands = null;
+        // nobody awaits the queued commands, so their errors end here.
+        batch(commands).catchError((dynamic e) {
+          _logger.warning('queued batch error: $e');
+        });
+      });
+    }
+    _queuedCommands.add(command);
+  }
+
+  /// A command of [batch] as its own platform call, where there is no batch call.
+  static Future<dynamic> _runUnbatched(PlayerCommand command) async {
+    final AsunaVideoPlayerController controller = command.controller;
+    if (controller._isDisposed || controller._textureId == null) {
+      return <String, dynamic>{'error': 'disposed', 'message': 'The controller is disposed'};
+    }
+    try {
+      switch (command.method) {
+        case 'play':
+          await controller.play();
+          break;
+        case 'pause':
+          await controller.pause();
+          break;
+        case 'seekTo':
+          await controller.seekTo(Duration(milliseconds: command.arguments['location']),
+              mode: SeekMode.values.firstWhere(
+                  (SeekMode mode) => mode.toString().split('.').last == command.arguments['mode']));
+          break;
+        case 'setVolume':
+          await controller.setVolume(command.arguments['volume']);
+          break;
+        case 'setLooping':
+          await controller.setLooping(command.arguments['looping']);
+          break;
+        case 'dispose':
+          await controller._disposePlatformPlayer();
+          break;
+        default:
+          // setVisibility only feeds the android resource manager.
+          break;
+      }
+      return null;
+    } on PlatformException catch (e) {
+      return <String, dynamic>{'error': e.code, 'message': e.message};
+    }
+  }
+
+  void _applyBatched(PlayerCommand command) {
+    switch (command.method) {
+      case 'play':
+        value = value.copyWith(isPlaying: true);
+        break;
+      case 'pause':
+        _markPaused();
+        break;
+      case 'seekTo':
+        _positionTimestamp = DateTime.now().millisecondsSinceEpoch;
+        value = value.copyWith(position: Duration(milliseconds: command.arguments['location']));
+        break;
+      case 'setVolume':
+        value = value.copyWith(volume: command.arguments['volume']);
+        break;
+      case 'setLooping':
+        value = value.copyWith(isLooping: command.arguments['looping']);
+        break;
+      case 'dispose':
+        _detach();
+        break;
+    }
+  }
+
+  /// The dart side of a pause: stops polling the position and lets the screen turn off.
+  void _markPaused() {
+    Screen.keepOn(false);
+    _timer?.cancel();
+    value = value.copyWith(isPlaying: false);
+  }
+
+  /// Detaches and disposes the platform player on its own, the controller still needs
+  /// [dispose].
+  Future<void> _disposePlatformPlayer() async {
+    final int textureId = _textureId;
+    _detach();
+    await _channel.invokeMethod<void>('dispose', <String, dynamic>{'textureId': textureId});
+  }
+
+  /// Stops listening to a platform player which is or is about to be disposed.
+  void _detach() {
+    _isDisposed = true;
+    _timer?.cancel();
+    _eventSubscription?.cancel();
+    _controllers.remove(this);
+  }
+
+  /// Downloads the network video at [uri] for offline playback, controllers for the same
+  /// [uri] then play from the downloaded data. Adaptive sources keep one video quality, the
+  /// best within [maxBitrate].
+  ///
+  /// Downloads continue while the app runs and resume after it was restarted, follow them
+  /// with [downloadEvents]. Android only, like the other download calls.
+  static Future<void> download(String uri, {int maxBitrate}) async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('download', <String, dynamic>{'uri': uri, 'maxBitrate': maxBitrate});
+  }
+
+  /// Cancels the download of [uri] and deletes its data.
+  static Future<void> removeDownload(String uri) async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('removeDownload', <String, dynamic>{'uri': uri});
+  }
+
+  static Future<void> pauseDownloads() async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('pauseDownloads');
+  }
+
+  static Future<void> resumeDownloads() async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('resumeDownloads');
+  }
+
+  /// Every download with its "uri", "state", "percentage" and downloaded "bytes", empty
+  /// outside Android.
+  static Future<List<dynamic>> downloads() async {
+    if (!Platform.isAndroid) {
+      return <dynamic>[];
+    }
+    return _channel.invokeMethod<List<dynamic>>('getDownloads');
+  }
+
+  /// "downloadState", "downloadProgress" and "quotaExceeded" events of all downloads, none
+  /// outside Android.
+  static Stream<dynamic> get downloadEvents => Platform.isAndroid
+      ? const EventChannel('asuna_video_player/downloadEvents').receiveBroadcastStream()
+      : Stream<dynamic>.empty();
+
   Future<void> initialize() async {
     _logger.info('AsunaVideoPlayerController.initialize $dataSource');
     _lifeCycleObserver = _VideoAppLifeCycleObserver(this);
@@ -179,11 +592,26 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
         dataSourceDescription = <String, dynamic>{'asset': dataSource, 'package': package};
         break;
       case DataSourceType.network:
-        dataSourceDescription = <String, dynamic>{'uri': dataSource};
+        dataSourceDescription = <String, dynamic>{'uri': dataSource, 'headers': httpHeaders};
         break;
       case DataSourceType.file:
         dataSourceDescription = <String, dynamic>{'uri': dataSource};
     }
+    dataSourceDescription['progressInterval'] = _progressInterval.inMilliseconds;
+    dataSourceDescription['bufferingProfile'] = bufferingProfile;
+    if (engine != null) {
+      dataSourceDescription['type'] = engine.toString().split('.').last;
+    }
+    if (resume) {
+      dataSourceDescription['resume'] = true;
+      dataSourceDescription['contentId'] = contentId;
+    }
+    if (shared) {
+      dataSourceDescription['shared'] = true;
+    }
+    if (Platform.isAndroid) {
+      dataSourceDescription['compactEvents'] = _compactEventsVersion;
+    }
 
     final Map<String, dynamic> response =
         await _channel.invokeMapMethod<String, dynamic>("create", dataSourceDescription);
@@ -191,6 +619,7 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
     _logger.info('dataSourceDescription: $dataSourceDescription');
     _logger.info('response: $response');
     _textureId = response['textureId'];
+    _controllers.add(this);
     _creatingCompleter.complete();
 //    final Completer<void> initializingCompleter = Completer<void>();
 
@@ -199,7 +628,41 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
       return DurationRange(Duration(milliseconds: pair[0]), Duration(milliseconds: pair[1]));
     }
 
+    void compactEventListener(Int64List packed) {
+      if (packed[0] >> 16 != _compactEventsVersion) {
+        _logger.warning('unsupported compact event schema ${packed[0] >> 16}');
+        return;
+      }
+      switch (packed[0] & 0xffff) {
+        case _compactProgress:
+          _hasNativeProgress = true;
+          _timer?.cancel();
+          _positionTimestamp = DateTime.now().millisecondsSinceEpoch;
+          value = value.copyWith(
+            position: Duration(milliseconds: packed[1]),
+            buffered: <DurationRange>[
+              DurationRange(const Duration(), Duration(milliseconds: packed[2])),
+            ],
+          );
+          break;
+        case _compactBufferingUpdate:
+          final List<DurationRange> buffered = <DurationRange>[];
+          for (int i = 0; i < packed[1]; i++) {
+            buffered.add(DurationRange(
+              Duration(milliseconds: packed[2 + i * 2]),
+              Duration(milliseconds: packed[3 + i * 2]),
+            ));
+          }
+          value = value.copyWith(buffered: buffered);
+          break;
+      }
+    }
+
     void eventListener(dynamic event) {
+      if (event is Int64List) {
+        compactEventListener(event);
+        return;
+      }
       final Map<dynamic, dynamic> map = event;
       switch (map['event']) {
         case 'initialized':
@@ -207,6 +670,10 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
             duration: Duration(milliseconds: map['duration']),
             size: Size(map['width']?.toDouble() ?? 0.0, map['height']?.toDouble() ?? 0.0),
           );
+          // a shared player that was already playing when this controller attached to it.
+          if (map['isPlaying'] != null) {
+            value = value.copyWith(isPlaying: map['isPlaying']);
+          }
           initializingCompleter.complete(null);
           _applyLooping();
           _applyVolume();
@@ -226,6 +693,36 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
         case 'bufferingEnd':
           value = value.copyWith(isBuffering: false);
           break;
+        case 'seekCompleted':
+          _positionTimestamp = map['timestamp'];
+          value = value.copyWith(position: Duration(milliseconds: map['position']));
+          break;
+        case 'stateChanged':
+          final String name = map['state'];
+          final PlaybackState state = PlaybackState.values
+              .firstWhere((s) => s.toString().split('.').last == name, orElse: () => PlaybackState.idle);
+          _hasNativeState = true;
+          _positionTimestamp = map['timestamp'];
+          value = value.copyWith(
+            state: state,
+            position: Duration(milliseconds: map['position']),
+            isBuffering: state == PlaybackState.preparing || state == PlaybackState.buffering,
+          );
+          break;
+        case 'itemChanged':
+          value = value.copyWith(duration: Duration(milliseconds: map['duration']));
+          break;
+        case 'progress':
+          _hasNativeProgress = true;
+          _timer?.cancel();
+          _positionTimestamp = DateTime.now().millisecondsSinceEpoch;
+          value = value.copyWith(
+            position: Duration(milliseconds: map['position']),
+            buffered: <DurationRange>[
+              DurationRange(const Duration(), Duration(milliseconds: map['buffered'])),
+            ],
+          );
+          break;
       }
     }
 
@@ -254,9 +751,7 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
     if (_creatingCompleter != null) {
       await _creatingCompleter.future;
       if (!_isDisposed) {
-        _isDisposed = true;
-        _timer?.cancel();
-        await _eventSubscription?.cancel();
+        _detach();
         _logger.info('AsunaVideoPlayerController($textureId).dispose');
         await _channel.invokeMethod<void>(
           'dispose',
@@ -284,8 +779,7 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
     if (_isDisposed) {
       return;
     }
-    Screen.keepOn(false);
-    value = value.copyWith(isPlaying: false);
+    _markPaused();
     await _applyPlayPause();
   }
 
@@ -305,6 +799,10 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
     }
     if (value.isPlaying) {
       await _channel.invokeMethod<void>('play', <String, dynamic>{'textureId': _textureId});
+      if (_hasNativeProgress) {
+        return;
+      }
+      _timer?.cancel();
       _timer = Timer.periodic(const Duration(milliseconds: 500), (Timer timer) async {
         if (!value.isPlaying) {
           timer?.cancel();
@@ -334,10 +832,25 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
         'setVolume', <String, dynamic>{'textureId': _textureId, 'volume': value.volume});
   }
 
+  /// The position interpolated from the last one the platform reported, without a platform call.
+  Duration get interpolatedPosition {
+    Duration position = value.position;
+    if (value.state == PlaybackState.playing && _positionTimestamp != null) {
+      position += Duration(milliseconds: DateTime.now().millisecondsSinceEpoch - _positionTimestamp);
+    }
+    if (value.duration != null && position > value.duration) {
+      return value.duration;
+    }
+    return position;
+  }
+
   Future<Duration> get position async {
     if (_isDisposed) {
       return null;
     }
+    if (_hasNativeState) {
+      return interpolatedPosition;
+    }
     final milliseconds = await _channel.invokeMethod<int>(
       'position',
       <String, dynamic>{'textureId': textureId},
@@ -350,7 +863,9 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
     );
   }
 
-  Future<void> seekTo(Duration moment) async {
+  /// Seeks issued while one is still running are coalesced on the platform, only the latest
+  /// is executed. The position is corrected once the seek completes.
+  Future<void> seekTo(Duration moment, {SeekMode mode = SeekMode.exact}) async {
     if (_isDisposed) {
       return;
     }
@@ -362,10 +877,107 @@ class AsunaVideoPlayerController extends ValueNotifier<_AsunaVideoPlayerValue> {
     await _channel.invokeMethod<void>('seekTo', <String, dynamic>{
       'textureId': _textureId,
       'location': moment.inMilliseconds,
+      'mode': mode.toString().split('.').last,
     });
+    _positionTimestamp = DateTime.now().millisecondsSinceEpoch;
     value = value.copyWith(position: moment);
   }
 
+  /// A downscaled jpeg of the keyframe near [moment], for previews while scrubbing.
+  ///
+  /// Frames are extracted without a second player and cached per second of video, so
+  /// repeated requests are cheap. Completes with null when the frame can't be extracted
+  /// or the request was canceled by [cancelThumbnails]. HLS and DASH sources aren't
+  /// supported and complete with null right away.
+  Future<Uint8List> thumbnailAt(Duration moment, {int maxWidth = 160}) {
+    if (!Platform.isAndroid) {
+      return Future<Uint8List>.value(null);
+    }
+    return _channel.invokeMethod<Uint8List>('getThumbnail', _thumbnailSource()
+      ..['timeMs'] = moment.inMilliseconds
+      ..['maxWidth'] = maxWidth);
+  }
+
+  /// Drops pending [thumbnailAt] requests of this video, e.g. once scrubbing stopped.
+  Future<void> cancelThumbnails() async {
+    if (!Platform.isAndroid) {
+      return;
+    }
+    await _channel.invokeMethod<void>('cancelThumbnails', _thumbnailSource());
+  }
+
+  Map<String, dynamic> _thumbnailSource() => dataSourceType == DataSourceType.asset
+      ? <String, dynamic>{'asset': dataSource, 'package': package}
+      : <String, dynamic>{'uri': dataSource, 'headers': httpHeaders};
+
+  /// Adds [uri] to the playlist of this player, at [index] or at the end.
+  ///
+  /// The platform prepares the next item ahead of time, so transitions are gapless.
+  Future<void> playlistAdd(String uri, {int index}) => _invokePlaylistMethod(
+      'playlistAdd', <String, dynamic>{'uri': uri, 'index': index});
+
+  Future<void> playlistRemove(int index) =>
+      _invokePlaylistMethod('playlistRemove', <String, dynamic>{'index': index});
+
+  Future<void> playlistMove(int from, int to) =>
+      _invokePlaylistMethod('playlistMove', <String, dynamic>{'from': from, 'to': to});
+
+  Future<void> next() => _invokePlaylistMethod('next', <String, dynamic>{});
+
+  Future<void> previous() => _invokePlaylistMethod('previous', <String, dynamic>{});
+
+  Future<void> _invokePlaylistMethod(String method, Map<String, dynamic> arguments) async {
+    if (!Platform.isAndroid || _isDisposed || _textureId == null) {
+      return;
+    }
+    arguments['textureId'] = _textureId;
+    await _channel.invokeMethod<void>(method, arguments);
+  }
+
+  /// Reports the pixel size of the widget showing the video, so the platform never picks a
+  /// video track larger than needed. Called by [AsunaVideoPlayer] on layout.
+  Future<void> setViewportSize(Size size) async {
+    if (!Platform.isAndroid || _isDisposed || _textureId == null || size == _viewportSize) {
+      return;
+    }
+    _viewportSize = size;
+    await _channel.invokeMethod<void>('setViewportSize', <String, dynamic>{
+      'textureId': _textureId,
+      'width': size.width.round(),
+      'height': size.height.round(),
+    });
+  }
+
+  /// Limits adaptive track selection, null means unlimited.
+  ///
+  /// With [preferLowestWhenHidden] the lowest quality is used while [setVisibility] is false.
+  Future<void> setTrackConstraints({
+    int maxWidth,
+    int maxHeight,
+    int maxBitrate,
+    bool preferLowestWhenHidden = false,
+  }) async {
+    if (!Platform.isAndroid || _isDisposed || _textureId == null) {
+      return;
+    }
+    await _channel.invokeMethod<void>('setTrackConstraints', <String, dynamic>{
+      'textureId': _textureId,
+      'maxWidth': maxWidth,
+      'maxHeight': maxHeight,
+      'maxBitrate': maxBitrate,
+      'preferLowestWhenHidden': preferLowestWhenHidden,
+    });
+  }
+
+  /// Tells the platform whether the video is currently on screen.
+  Future<void> setVisibility(bool visible) async {
+    if (!Platform.isAndroid || _isDisposed || _textureId == null) {
+      return;
+    }
+    await _channel.invokeMethod<void>(
+        'setVisibility', <String, dynamic>{'textureId': _textureId, 'visible': visible});
+  }
+
   /// Sets the audio volume of [this].
   ///
   /// [volume] indicates a value between 0.0 (silent) and 1.0 (full volume) on a
@@ -392,7 +1004,13 @@ class _VideoAppLifeCycleObserver extends Object with WidgetsBindingObserver {
     switch (state) {
       case AppLifecycleState.paused:
         _wasPlayingBeforePause = _controller.value.isPlaying;
-        _controller.pause();
+        if (Platform.isAndroid) {
+          Screen.keepOn(false);
+          // every controller gets this callback, their pauses go out as one batch.
+          AsunaVideoPlayerController._queue(PlayerCommand.pause(_controller));
+        } else {
+          _controller.pause();
+        }
         break;
       case AppLifecycleState.resumed:
         if (_wasPlayingBeforePause) {
@@ -459,9 +1077,16 @@ class _AsunaVideoPlayerState extends State<AsunaVideoPlayer> {
   /// video texture
   @override
   Widget build(BuildContext context) {
-    return _textureId == null
-        ? Container(child: Text("no texture found"))
-        : Texture(textureId: _textureId);
+    if (_textureId == null) {
+      return Container(child: Text("no texture found"));
+    }
+    return LayoutBuilder(builder: (BuildContext context, BoxConstraints constraints) {
+      final Size size = constraints.biggest;
+      if (size.isFinite) {
+        widget.controller.setViewportSize(size * MediaQuery.of(context).devicePixelRatio);
+      }
+      return Texture(textureId: _textureId);
+    });
   }
 }
 
@@ -498,12 +1123,12 @@ class _VideoScrubberState extends State<_VideoScrubber> {
 
   @override
   Widget build(BuildContext context) {
-    void seekToRelativePosition(Offset globalPosition) {
+    void seekToRelativePosition(Offset globalPosition, {SeekMode mode = SeekMode.exact}) {
       final RenderBox box = context.findRenderObject();
       final Offset tapPos = box.globalToLocal(globalPosition);
       final double relative = tapPos.dx / box.size.width;
       final Duration position = controller.value.duration * relative;
-      controller.seekTo(position);
+      controller.seekTo(position, mode: mode);
     }
 
     return GestureDetector(
@@ -522,7 +1147,8 @@ class _VideoScrubberState extends State<_VideoScrubber> {
         if (!controller.value.initialized) {
           return;
         }
-        seekToRelativePosition(details.globalPosition);
+        // snap to keyframes while dragging, they decode without flushing to the exact frame.
+        seekToRelativePosition(details.globalPosition, mode: SeekMode.closestSync);
       },
       onHorizontalDragEnd: (DragEndDetails details) {
         if (_controllerWasPlaying) {